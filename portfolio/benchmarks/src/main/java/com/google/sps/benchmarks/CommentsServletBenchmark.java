@@ -0,0 +1,101 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.sps.servlets.CommentsServlet;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures GET /comments for the newest page and for a page reached through a cursor. */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CommentsServletBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  public int entities;
+
+  @Param({"20"})
+  public int maxComments;
+
+  private ServletHarness harness;
+  private CommentsServlet servlet;
+  private HttpServletRequest firstPageRequest;
+  private HttpServletRequest nextPageRequest;
+  private HttpServletResponse response;
+
+  @Setup
+  public void setUp() throws IOException, ServletException {
+    harness = ServletHarness.start();
+    harness.seedComments(entities);
+
+    servlet = new CommentsServlet();
+    servlet.init(ServletHarness.config());
+
+    Map<String, String> params = new HashMap<>();
+    params.put("max-comments", String.valueOf(maxComments));
+    firstPageRequest = ServletHarness.request(params);
+
+    // Read cursor for the second page from the first page
+    StringWriter firstPage = new StringWriter();
+    servlet.doGet(firstPageRequest, ServletHarness.response(firstPage));
+    JsonObject json = new JsonParser().parse(firstPage.toString()).getAsJsonObject();
+
+    Map<String, String> nextPageParams = new HashMap<>(params);
+    nextPageParams.put("cursor", json.get("next").getAsString());
+    nextPageRequest = ServletHarness.request(nextPageParams);
+
+    response = ServletHarness.response(ServletHarness.discardingWriter());
+  }
+
+  @TearDown
+  public void tearDown() {
+    servlet.destroy();
+    harness.stop();
+  }
+
+  @Benchmark
+  public void firstPage() throws IOException {
+    servlet.doGet(firstPageRequest, response);
+  }
+
+  @Benchmark
+  public void nextPage() throws IOException {
+    servlet.doGet(nextPageRequest, response);
+  }
+}
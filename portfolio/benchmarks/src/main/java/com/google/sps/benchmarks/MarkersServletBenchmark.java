@@ -0,0 +1,110 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.sps.data.MarkerColumnsWriter;
+import com.google.sps.servlets.MarkersServlet;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures GET /markers for every stored marker, as JSON and in the columnar binary
+ * format, and for a city-sized viewport.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MarkersServletBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  public int entities;
+
+  // Whether markers are served from the in-memory snapshot, which is read at startup
+  @Param({"false", "true"})
+  public boolean snapshot;
+
+  private ServletHarness harness;
+  private MarkersServlet servlet;
+  private HttpServletRequest request;
+  private HttpServletRequest viewportRequest;
+  private HttpServletRequest columnarRequest;
+  private HttpServletResponse response;
+
+  @Setup
+  public void setUp() throws ServletException {
+    System.setProperty("sps.markers.snapshot", String.valueOf(snapshot));
+    harness = ServletHarness.start();
+    harness.seedMarkers(entities);
+
+    servlet = new MarkersServlet();
+    servlet.init(ServletHarness.config());
+
+    request = ServletHarness.request(Collections.<String, String>emptyMap());
+
+    // Roughly the area shown when zoomed in on a large city
+    Map<String, String> bounds = new HashMap<>();
+    bounds.put("north", "51.7");
+    bounds.put("south", "51.3");
+    bounds.put("east", "0.3");
+    bounds.put("west", "-0.5");
+    viewportRequest = ServletHarness.request(bounds);
+
+    columnarRequest = ServletHarness.request("GET", Collections.<String, String>emptyMap(),
+        Collections.singletonMap("Accept", MarkerColumnsWriter.CONTENT_TYPE));
+    response = ServletHarness.response(ServletHarness.discardingWriter());
+  }
+
+  @TearDown
+  public void tearDown() {
+    servlet.destroy();
+    harness.stop();
+  }
+
+  @Benchmark
+  public void allMarkers() throws IOException {
+    servlet.doGet(request, response);
+  }
+
+  @Benchmark
+  public void allMarkersColumnar() throws IOException {
+    servlet.doGet(columnarRequest, response);
+  }
+
+  @Benchmark
+  public void viewportMarkers() throws IOException {
+    servlet.doGet(viewportRequest, response);
+  }
+}
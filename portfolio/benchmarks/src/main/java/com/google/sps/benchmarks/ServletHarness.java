@@ -0,0 +1,310 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.sps.data.Geohash;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs portfolio servlets in-process against the App Engine local service stand-ins.
+ * Requests and responses are minimal fakes that only answer the calls the servlets
+ * make, so that as little as possible besides the servlet itself is measured.
+ */
+public final class ServletHarness {
+
+  /** Id of the logged in user that requests are made as. */
+  public static final String USER_ID = "benchmark-user";
+
+  // Number of distinct authors synthetic comments and markers are spread over
+  private static final int AUTHORS = 100;
+
+  // Largest number of entities Datastore accepts in one put
+  private static final int PUT_BATCH_SIZE = 500;
+
+  private static final String USER_ID_ATTRIBUTE =
+      "com.google.appengine.api.users.UserService.user_id_key";
+
+  private final LocalServiceTestHelper helper;
+
+  private ServletHarness(LocalServiceTestHelper helper) {
+    this.helper = helper;
+  }
+
+  /** Starts local Datastore, memcache and Users API with USER_ID logged in. */
+  public static ServletHarness start() {
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put(USER_ID_ATTRIBUTE, USER_ID);
+
+    LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(
+                new LocalDatastoreServiceTestConfig().setNoStorage(true),
+                new LocalMemcacheServiceTestConfig(),
+                new LocalUserServiceTestConfig())
+            .setEnvIsLoggedIn(true)
+            .setEnvEmail("benchmark@example.com")
+            .setEnvAuthDomain("example.com")
+            .setEnvAttributes(attributes);
+    helper.setUp();
+    return new ServletHarness(helper);
+  }
+
+  /** Stops the local services and discards all data. */
+  public void stop() {
+    helper.tearDown();
+  }
+
+  /** Stores count synthetic comments, and UserInfo entities for their authors. */
+  public void seedComments(int count) {
+    List<Entity> entities = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < count; i++) {
+      Entity entity = new Entity("CommentData");
+      entity.setProperty("id", author(i));
+      entity.setProperty("content", "Synthetic comment number " + i);
+      entity.setProperty("utcDate", new Date(now - i * 1000L));
+      entity.setUnindexedProperty("displayName", "Author " + (i % AUTHORS));
+      entities.add(entity);
+    }
+    put(entities);
+    seedUsers();
+  }
+
+  /** Stores count synthetic markers spread over the map, and UserInfo entities for authors. */
+  public void seedMarkers(int count) {
+    Random random = new Random(count);
+    List<Entity> entities = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Entity entity = new Entity("MarkerDataEntity");
+      double lat = random.nextDouble() * 170 - 85;
+      double lng = random.nextDouble() * 360 - 180;
+      entity.setProperty("lat", lat);
+      entity.setProperty("lng", lng);
+      entity.setProperty("geohash", Geohash.encode(lat, lng, Geohash.PRECISION));
+      entity.setProperty("id", author(i));
+      entity.setProperty("content", "Synthetic marker number " + i);
+      entity.setUnindexedProperty("displayName", "Author " + (i % AUTHORS));
+      entities.add(entity);
+    }
+    put(entities);
+    seedUsers();
+  }
+
+  /** Returns GET request with params and no headers. */
+  public static HttpServletRequest request(Map<String, String> params) {
+    return request("GET", params, Collections.<String, String>emptyMap());
+  }
+
+  /** Returns request with method, params and headers. */
+  public static HttpServletRequest request(
+      String method, Map<String, String> params, Map<String, String> headers) {
+    return (HttpServletRequest) Proxy.newProxyInstance(
+        ServletHarness.class.getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class},
+        (proxy, m, args) -> {
+          switch (m.getName()) {
+            case "getMethod":
+              return method;
+            case "getParameter":
+              return params.get(args[0]);
+            case "getHeader":
+              return headers.get(args[0]);
+            default:
+              return defaultValue(m.getReturnType());
+          }
+        });
+  }
+
+  /** Returns response whose body is written to out. Status is discarded. */
+  public static HttpServletResponse response(Writer out) {
+    return response(out, discardingStream());
+  }
+
+  /**
+   * Returns response whose text body is written to out and binary body to stream.
+   * Headers are kept so that filters can read them back, and status is discarded.
+   */
+  public static HttpServletResponse response(Writer out, OutputStream stream) {
+    PrintWriter writer = new PrintWriter(out);
+    Map<String, String> headers = new HashMap<>();
+    ServletOutputStream outputStream = new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        stream.write(b);
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+        stream.write(bytes, offset, length);
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener listener) {}
+    };
+
+    return (HttpServletResponse) Proxy.newProxyInstance(
+        ServletHarness.class.getClassLoader(),
+        new Class<?>[] {HttpServletResponse.class},
+        (proxy, m, args) -> {
+          switch (m.getName()) {
+            case "getWriter":
+              return writer;
+            case "getOutputStream":
+              return outputStream;
+            case "getCharacterEncoding":
+              // Servlet containers default to ISO-8859-1 when no encoding is set
+              return "ISO-8859-1";
+            case "setContentType":
+              headers.put("Content-Type", (String) args[0]);
+              return null;
+            case "getContentType":
+              return headers.get("Content-Type");
+            case "setHeader":
+            case "addHeader":
+              headers.put((String) args[0], (String) args[1]);
+              return null;
+            case "getHeader":
+              return headers.get(args[0]);
+            case "containsHeader":
+              return headers.containsKey(args[0]);
+            default:
+              return defaultValue(m.getReturnType());
+          }
+        });
+  }
+
+  /** Returns writer that discards everything written to it. */
+  public static Writer discardingWriter() {
+    return new Writer() {
+      @Override
+      public void write(char[] chars, int offset, int length) {}
+
+      @Override
+      public void flush() {}
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  /** Returns stream that discards everything written to it. */
+  public static OutputStream discardingStream() {
+    return new OutputStream() {
+      @Override
+      public void write(int b) {}
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) {}
+    };
+  }
+
+  /**
+   * Returns servlet config whose context serves resources from the portfolio webapp
+   * directory, set with the portfolio.webapp system property.
+   */
+  public static ServletConfig config() {
+    String webappDir = System.getProperty("portfolio.webapp", "../src/main/webapp");
+    ServletContext context = (ServletContext) Proxy.newProxyInstance(
+        ServletHarness.class.getClassLoader(),
+        new Class<?>[] {ServletContext.class},
+        (proxy, m, args) -> {
+          if (m.getName().equals("getResourceAsStream")) {
+            try {
+              return new FileInputStream(webappDir + args[0]);
+            } catch (FileNotFoundException e) {
+              return null;
+            }
+          }
+          return defaultValue(m.getReturnType());
+        });
+
+    return (ServletConfig) Proxy.newProxyInstance(
+        ServletHarness.class.getClassLoader(),
+        new Class<?>[] {ServletConfig.class},
+        (proxy, m, args) -> {
+          switch (m.getName()) {
+            case "getServletContext":
+              return context;
+            case "getInitParameterNames":
+              return Collections.emptyEnumeration();
+            default:
+              return defaultValue(m.getReturnType());
+          }
+        });
+  }
+
+  private static String author(int i) {
+    return i % AUTHORS == 0 ? USER_ID : "user-" + (i % AUTHORS);
+  }
+
+  private void seedUsers() {
+    List<Entity> entities = new ArrayList<>();
+    for (int i = 0; i < AUTHORS; i++) {
+      Entity entity = new Entity("UserInfo", author(i));
+      entity.setUnindexedProperty("id", author(i));
+      entity.setProperty("displayName", "Author " + i);
+      entities.add(entity);
+    }
+    put(entities);
+  }
+
+  private static void put(List<Entity> entities) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    for (int i = 0; i < entities.size(); i += PUT_BATCH_SIZE) {
+      datastore.put(entities.subList(i, Math.min(i + PUT_BATCH_SIZE, entities.size())));
+    }
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+}
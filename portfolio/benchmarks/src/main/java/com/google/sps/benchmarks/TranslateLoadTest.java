@@ -0,0 +1,206 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.sps.data.FakeTranslator;
+import com.google.sps.servlets.TranslateServlet;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletException;
+
+/**
+ * Sends GET /translate requests at a fixed rate and reports latency percentiles.
+ * Requests go to a running server given with --url, or otherwise to a TranslateServlet
+ * in this process backed by a FakeTranslator.
+ *
+ * <p>Requests are started on schedule whether or not earlier ones have finished,
+ * and latency is measured from when each was due, so a server that falls behind
+ * shows it in the percentiles rather than by being sent fewer requests.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.google.sps.benchmarks.TranslateLoadTest \
+ *     --qps 20 --seconds 30 --texts 50 --latency lognormal:100,0.5 --error-rate 0.01
+ * </pre>
+ */
+public final class TranslateLoadTest {
+
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+  // Most requests in flight, beyond which due requests wait for a free thread
+  private static final int MAX_IN_FLIGHT = 256;
+
+  private TranslateLoadTest() {}
+
+  /**
+   * Runs the load test. Options are --url, --qps (default 10), --seconds (default
+   * 30), --texts, the number of distinct texts cycled through so that repeats hit the
+   * translation cache (default 0, every text new), and for the in-process servlet
+   * --latency (default lognormal:100,0.5) and --error-rate (default 0) of the fake.
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = parseOptions(args);
+    double qps = Double.parseDouble(options.getOrDefault("qps", "10"));
+    int seconds = Integer.parseInt(options.getOrDefault("seconds", "30"));
+    int texts = Integer.parseInt(options.getOrDefault("texts", "0"));
+
+    Target target;
+    if (options.containsKey("url")) {
+      target = httpTarget(options.get("url"));
+    } else {
+      target = servletTarget(
+          FakeTranslator.Latency.parse(options.getOrDefault("latency", "lognormal:100,0.5")),
+          Double.parseDouble(options.getOrDefault("error-rate", "0")));
+    }
+
+    int requests = (int) Math.round(qps * seconds);
+    long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / qps);
+    List<Double> latencies = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger errors = new AtomicInteger();
+    AtomicInteger partial = new AtomicInteger();
+
+    ExecutorService executor = Executors.newFixedThreadPool(MAX_IN_FLIGHT);
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < requests; i++) {
+      long dueNanos = startNanos + i * periodNanos;
+      long waitNanos = dueNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      }
+
+      String text = "Load test phrase " + (texts > 0 ? i % texts : i);
+      executor.execute(() -> {
+        Outcome outcome;
+        try {
+          outcome = target.get(text);
+        } catch (IOException | RuntimeException e) {
+          outcome = Outcome.ERROR;
+        }
+        latencies.add((System.nanoTime() - dueNanos) / 1e6);
+        if (outcome == Outcome.ERROR) {
+          errors.incrementAndGet();
+        } else if (outcome == Outcome.PARTIAL) {
+          partial.incrementAndGet();
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.HOURS);
+    double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+
+    List<Double> sorted = new ArrayList<>(latencies);
+    Collections.sort(sorted);
+    System.out.printf("requests: %d in %.1f s (%.1f/s, target %.1f/s)%n",
+        sorted.size(), elapsedSeconds, sorted.size() / elapsedSeconds, qps);
+    System.out.printf("errors: %d (%.2f%%)%n", errors.get(), 100.0 * errors.get() / requests);
+    System.out.printf("with pending languages: %d (%.2f%%)%n",
+        partial.get(), 100.0 * partial.get() / requests);
+    for (double percentile : PERCENTILES) {
+      System.out.printf("p%s: %.1f ms%n", percentile * 100, getPercentile(sorted, percentile));
+    }
+    System.out.printf("max: %.1f ms%n", sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1));
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("--") || i + 1 == args.length) {
+        throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+      }
+      options.put(args[i].substring(2), args[++i]);
+    }
+    return options;
+  }
+
+  private static double getPercentile(List<Double> sorted, double percentile) {
+    if (sorted.isEmpty()) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+    return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+  }
+
+  /** How a request ended. */
+  private enum Outcome {
+    /** Every language was translated. */
+    OK,
+    /** Served, but with some languages left pending. */
+    PARTIAL,
+    /** Not served. */
+    ERROR
+  }
+
+  /** Endpoint the requests are sent to. */
+  private interface Target {
+    /** Requests translations of text and returns how the request ended. */
+    Outcome get(String text) throws IOException;
+  }
+
+  private static Outcome getOutcome(String body) {
+    return body.contains("\"pending\":") ? Outcome.PARTIAL : Outcome.OK;
+  }
+
+  /** Returns target that sends requests to the /translate endpoint of the server at url. */
+  private static Target httpTarget(String url) {
+    String translateUrl = url.replaceAll("/$", "") + "/translate?text=";
+    return text -> {
+      HttpURLConnection connection = (HttpURLConnection)
+          new URL(translateUrl + URLEncoder.encode(text, "UTF-8")).openConnection();
+      try {
+        if (connection.getResponseCode() >= 400) {
+          return Outcome.ERROR;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+          byte[] buffer = new byte[8192];
+          int length;
+          while ((length = in.read(buffer)) != -1) {
+            body.write(buffer, 0, length);
+          }
+        }
+        return getOutcome(body.toString("UTF-8"));
+      } finally {
+        connection.disconnect();
+      }
+    };
+  }
+
+  /** Returns target that calls a TranslateServlet backed by a fake in this process. */
+  private static Target servletTarget(FakeTranslator.Latency latency, double errorRate)
+      throws ServletException {
+    TranslateServlet servlet = new TranslateServlet(
+        new FakeTranslator(latency, errorRate), Executors.defaultThreadFactory());
+    servlet.init(ServletHarness.config());
+    return text -> {
+      StringWriter body = new StringWriter();
+      servlet.doGet(ServletHarness.request(Collections.singletonMap("text", text)),
+          ServletHarness.response(body));
+      return getOutcome(body.toString());
+    };
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.sps.data.FakeTranslator;
+import com.google.sps.servlets.TranslateServlet;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures GET /translate against a fake translation service. With no latency the
+ * result is the servlet's own cost; with latency it shows how calls add up. Repeated
+ * text is answered from the translation cache, while new text misses it every time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TranslateServletBenchmark {
+
+  @Param({"0", "1"})
+  public long translateLatencyMillis;
+
+  @Param({"true", "false"})
+  public boolean repeatedText;
+
+  private ServletHarness harness;
+  private TranslateServlet servlet;
+  private Map<String, String> params;
+  private HttpServletRequest request;
+  private int texts;
+  private HttpServletResponse response;
+
+  @Setup
+  public void setUp() throws ServletException {
+    harness = ServletHarness.start();
+
+    servlet = new TranslateServlet(
+        new FakeTranslator(FakeTranslator.Latency.fixed(translateLatencyMillis), 0),
+        Executors.defaultThreadFactory());
+    servlet.init(ServletHarness.config());
+
+    params = new HashMap<>();
+    params.put("text", "Hello world");
+    request = ServletHarness.request(params);
+    response = ServletHarness.response(ServletHarness.discardingWriter());
+  }
+
+  @TearDown
+  public void tearDown() {
+    servlet.destroy();
+    harness.stop();
+  }
+
+  @Benchmark
+  public void translate() throws IOException {
+    if (!repeatedText) {
+      params.put("text", "Hello world " + texts++);
+    }
+    servlet.doGet(request, response);
+  }
+}
@@ -0,0 +1,38 @@
+package com.google.sps.data;
+
+import com.google.cloud.translate.Translate;
+import com.google.cloud.translate.TranslateOptions;
+import com.google.cloud.translate.Translation;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Translator that calls the Cloud Translation API. */
+public final class CloudTranslator implements Translator {
+
+  private Translate translate;
+
+  @Override
+  public String translate(String text, String isoCode) {
+    return getService()
+        .translate(text, Translate.TranslateOption.targetLanguage(isoCode))
+        .getTranslatedText();
+  }
+
+  @Override
+  public List<String> translate(List<String> texts, String isoCode) {
+    List<String> translatedTexts = new ArrayList<>();
+    for (Translation translation :
+        getService().translate(texts, Translate.TranslateOption.targetLanguage(isoCode))) {
+      translatedTexts.add(translation.getTranslatedText());
+    }
+    return translatedTexts;
+  }
+
+  // Service is created on first use, so credentials are only needed once translating
+  private synchronized Translate getService() {
+    if (translate == null) {
+      translate = TranslateOptions.getDefaultInstance().getService();
+    }
+    return translate;
+  }
+}
@@ -0,0 +1,199 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.LifecycleManager;
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.sps.metrics.DatastoreMetrics;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded in-memory queue of comments waiting to be saved. A background flusher
+ * commits queued comments in groups, either once a full group has been queued or
+ * at a fixed interval, so a burst of posts costs one Datastore put per group
+ * instead of one per post.
+ *
+ * <p>Comments are given the keys they will be saved under when queued, so that they
+ * can be shown to their author before they are saved. The flusher runs on a
+ * background thread, which App Engine only allows on manual or basic scaling.
+ * Queued comments are flushed when the instance shuts down, and a group that fails
+ * to save MAX_ATTEMPTS times is dropped so it can't hold up the comments behind it.
+ */
+public final class CommentWriteBehindQueue {
+
+  private static final Logger logger = Logger.getLogger(CommentWriteBehindQueue.class.getName());
+
+  // Times a group is tried before it is dropped
+  private static final int MAX_ATTEMPTS = 5;
+
+  // Longest wait at shutdown for a flush already running to finish
+  private static final long SHUTDOWN_TIMEOUT_MILLIS = 10 * 1000;
+
+  private final int capacity;
+  private final int maxGroupSize;
+  private final Deque<UserContent> pending = new ArrayDeque<>();
+  private final ScheduledExecutorService flusher;
+  private final Object flushLock = new Object();
+
+  private Iterator<Key> reservedKeys;
+  private boolean shutDown;
+
+  // Failed attempts to save the group at the front of the queue, guarded by flushLock
+  private int failedAttempts;
+
+  /**
+   * Creates queue holding at most capacity comments that are saved in groups of up
+   * to maxGroupSize, at least every flushIntervalMillis.
+   */
+  public CommentWriteBehindQueue(int capacity, int maxGroupSize, long flushIntervalMillis) {
+    this.capacity = capacity;
+    this.maxGroupSize = maxGroupSize;
+    this.flusher =
+        Executors.newSingleThreadScheduledExecutor(ThreadManager.backgroundThreadFactory());
+    flusher.scheduleWithFixedDelay(
+        this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+    // Comments still queued when App Engine stops the instance would otherwise be lost
+    LifecycleManager.getInstance().setShutdownHook(this::shutdown);
+  }
+
+  /**
+   * Queues comment to be saved and returns true, or returns false without queueing
+   * it if the queue is full.
+   */
+  public synchronized boolean offer(UserContent comment) {
+    if (shutDown || pending.size() >= capacity) {
+      return false;
+    }
+
+    // Copy comment onto a reserved key so it can be referenced before it is saved
+    Entity keyedEntity = new Entity(nextKey(comment.getEntity().getKind()));
+    keyedEntity.setPropertiesFrom(comment.getEntity());
+    pending.add(new UserContent(keyedEntity, comment.getId(), comment.getDisplayName()));
+
+    if (pending.size() == maxGroupSize) {
+      flusher.execute(this::flush);
+    }
+    return true;
+  }
+
+  /** Returns comments by user with id that are queued but not yet saved, newest first. */
+  public synchronized List<Entity> getPending(String id) {
+    List<Entity> comments = new ArrayList<>();
+    Iterator<UserContent> iterator = pending.descendingIterator();
+    while (iterator.hasNext()) {
+      UserContent comment = iterator.next();
+      if (comment.getId().equals(id)) {
+        comments.add(comment.getEntity());
+      }
+    }
+    return comments;
+  }
+
+  /**
+   * Stops the flusher and saves every comment still queued. Comments offered
+   * afterwards are refused. Called when the instance shuts down.
+   */
+  public void shutdown() {
+    synchronized (this) {
+      if (shutDown) {
+        return;
+      }
+      shutDown = true;
+    }
+
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    // Each pass saves the queue or fails once more, so groups are dropped eventually
+    while (!isEmpty()) {
+      flush();
+    }
+  }
+
+  /**
+   * Saves queued comments group by group until the queue is empty or a put fails.
+   * A group that has failed MAX_ATTEMPTS times is dropped instead of being retried.
+   */
+  private void flush() {
+    // Flushes from the flusher and from shutdown must not save the same group twice
+    synchronized (flushLock) {
+      flushGroups();
+    }
+  }
+
+  private void flushGroups() {
+    while (true) {
+      // Comments stay queued, and visible to their authors, until they are saved
+      List<UserContent> group = new ArrayList<>();
+      synchronized (this) {
+        Iterator<UserContent> iterator = pending.iterator();
+        while (group.size() < maxGroupSize && iterator.hasNext()) {
+          group.add(iterator.next());
+        }
+      }
+
+      if (group.isEmpty()) {
+        return;
+      }
+
+      try {
+        DataUtil.putUserContent(group);
+      } catch (RuntimeException e) {
+        failedAttempts++;
+        if (failedAttempts < MAX_ATTEMPTS) {
+          // Group is retried on the next flush
+          logger.log(Level.WARNING, "Failed to save " + group.size() + " queued comments", e);
+          return;
+        }
+
+        List<Key> keys = new ArrayList<>();
+        for (UserContent comment : group) {
+          keys.add(comment.getEntity().getKey());
+        }
+        logger.log(Level.SEVERE, "Dropping " + group.size() + " queued comments after "
+            + failedAttempts + " failed attempts: " + keys, e);
+        removeFirst(group.size());
+        failedAttempts = 0;
+        continue;
+      }
+
+      removeFirst(group.size());
+      failedAttempts = 0;
+      DataUtil.getCommentsFeedCache().bumpVersion();
+    }
+  }
+
+  private synchronized boolean isEmpty() {
+    return pending.isEmpty();
+  }
+
+  /** Removes first count comments, which have been saved or dropped, from the queue. */
+  private synchronized void removeFirst(int count) {
+    for (int i = 0; i < count; i++) {
+      pending.removeFirst();
+    }
+  }
+
+  /** Returns next reserved key for kind, reserving another group's worth if needed. */
+  private Key nextKey(String kind) {
+    if (reservedKeys == null || !reservedKeys.hasNext()) {
+      reservedKeys =
+          DatastoreMetrics.getDatastoreService().allocateIds(kind, maxGroupSize).iterator();
+    }
+    return reservedKeys.next();
+  }
+}
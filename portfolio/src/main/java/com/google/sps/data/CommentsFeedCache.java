@@ -0,0 +1,133 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds pre-serialized JSON for the newest page of comments, one snapshot for each
+ * of the few most recently requested page sizes. Snapshots are tagged with a feed
+ * version kept in memcache, so that a write on any instance invalidates the
+ * snapshots held by every instance.
+ */
+public final class CommentsFeedCache {
+
+  private static final String MEMCACHE_NAMESPACE = "CommentsFeed";
+  private static final String VERSION_KEY = "version";
+
+  // Bounds how long a snapshot built from an eventually consistent query is served
+  private static final long SNAPSHOT_TTL_MILLIS = 30 * 1000;
+
+  // Page sizes held at once, enough for every size the comments select offers
+  private static final int MAX_SNAPSHOTS = 5;
+
+  private final MemcacheService memcache =
+      MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE);
+
+  // Access order makes the least recently used page size the one dropped when full
+  private final Map<Integer, Snapshot> snapshots =
+      new LinkedHashMap<Integer, Snapshot>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Snapshot> eldest) {
+          return size() > MAX_SNAPSHOTS;
+        }
+      };
+
+  /**
+   * Returns current version of the comments feed, or null if it can't be
+   * determined, in which case nothing should be cached.
+   */
+  public Long getVersion() {
+    Long version = (Long) memcache.get(VERSION_KEY);
+    if (version == null) {
+      // Start from the current time so a lost version is never reused
+      memcache.put(VERSION_KEY, System.currentTimeMillis(), null,
+          MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      version = (Long) memcache.get(VERSION_KEY);
+    }
+    return version;
+  }
+
+  /** Invalidates every snapshot. Called whenever a comment is added, edited or deleted. */
+  public void bumpVersion() {
+    memcache.increment(VERSION_KEY, 1L, System.currentTimeMillis());
+  }
+
+  /** Returns snapshot of first maxComments comments at version, or null if there is none. */
+  public synchronized Snapshot get(int maxComments, long version) {
+    Snapshot snapshot = snapshots.get(maxComments);
+    if (snapshot == null || snapshot.version != version
+        || snapshot.createdAtMillis + SNAPSHOT_TTL_MILLIS <= System.currentTimeMillis()) {
+      return null;
+    }
+    return snapshot;
+  }
+
+  /** Stores json as the snapshot of first maxComments comments at version. */
+  public synchronized Snapshot put(int maxComments, long version, String json) {
+    Snapshot snapshot = new Snapshot(version, json);
+    snapshots.put(maxComments, snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Serialized page of comments along with the entity tag identifying its content.
+   * The gzipped variant is compressed on first use and then kept with the snapshot.
+   */
+  public static final class Snapshot {
+    private final long version;
+    private final long createdAtMillis;
+    private final String json;
+    private final String eTag;
+    private byte[] gzip;
+
+    private Snapshot(long version, String json) {
+      this.version = version;
+      this.createdAtMillis = System.currentTimeMillis();
+      this.json = json;
+      this.eTag = createETag(json);
+    }
+
+    /** Returns serialized comments page. */
+    public String getJson() {
+      return json;
+    }
+
+    /** Returns quoted entity tag derived from the content of the page. */
+    public String getETag() {
+      return eTag;
+    }
+
+    /** Returns serialized comments page encoded as UTF-8 and gzipped. */
+    public synchronized byte[] getGzip() {
+      if (gzip == null) {
+        gzip = Gzip.compress(out -> out.write(json.getBytes(StandardCharsets.UTF_8)));
+      }
+      return gzip;
+    }
+
+    /** Returns quoted entity tag of the gzipped page, which differs from the plain one. */
+    public String getGzipETag() {
+      return eTag.substring(0, eTag.length() - 1) + "-gzip\"";
+    }
+
+    private static String createETag(String json) {
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] hash = digest.digest(json.getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder eTag = new StringBuilder("\"");
+        for (int i = 0; i < 16; i++) {
+          eTag.append(String.format("%02x", hash[i]));
+        }
+        return eTag.append('"').toString();
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException("SHA-256 not available");
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.google.sps.data;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Countries and the major languages spoken in them, read once from
+ * "WEB-INF/countrylanguages.json" (see TranslationData for its format). Nothing is
+ * modified after loading, so one instance can be shared by every request.
+ */
+public final class CountryLanguages {
+
+  private final List<Country> countries;
+  private final Set<String> isoCodes;
+
+  private CountryLanguages(List<Country> countries, Set<String> isoCodes) {
+    this.countries = countries;
+    this.isoCodes = isoCodes;
+  }
+
+  /** Reads countries and their languages from JSON in the countrylanguages.json format. */
+  public static CountryLanguages load(InputStream json) throws IOException {
+    TranslationData[] translationsData;
+    try (InputStreamReader reader = new InputStreamReader(json, "UTF-8")) {
+      translationsData = new Gson().fromJson(reader, TranslationData[].class);
+    }
+
+    List<Country> countries = new ArrayList<>();
+    Set<String> isoCodes = new LinkedHashSet<>();
+    for (TranslationData translationData : translationsData) {
+      List<String> languageKeys = new ArrayList<>(translationData.getTranslations().keySet());
+      List<String> countryIsoCodes = new ArrayList<>();
+      for (String languageKey : languageKeys) {
+        // languageKey is in form "isoCode, englishName". Below statement extracts isoCode
+        String isoCode = languageKey.split(",")[0];
+        countryIsoCodes.add(isoCode);
+        isoCodes.add(isoCode);
+      }
+
+      countries.add(new Country(translationData.getCountry(), translationData.getLat(),
+          translationData.getLng(), Collections.unmodifiableList(languageKeys),
+          Collections.unmodifiableList(countryIsoCodes)));
+    }
+    return new CountryLanguages(
+        Collections.unmodifiableList(countries), Collections.unmodifiableSet(isoCodes));
+  }
+
+  /** Returns countries in the order they were read. */
+  public List<Country> getCountries() {
+    return countries;
+  }
+
+  /** Returns ISO code of every language spoken in some country, each once. */
+  public Set<String> getIsoCodes() {
+    return isoCodes;
+  }
+
+  /** Country and the languages spoken in it. */
+  public static final class Country {
+    private final String name;
+    private final double lat;
+    private final double lng;
+    private final List<String> languageKeys;
+    private final List<String> isoCodes;
+
+    private Country(String name, double lat, double lng, List<String> languageKeys,
+        List<String> isoCodes) {
+      this.name = name;
+      this.lat = lat;
+      this.lng = lng;
+      this.languageKeys = languageKeys;
+      this.isoCodes = isoCodes;
+    }
+
+    /** Returns name of country in English. */
+    public String getName() {
+      return name;
+    }
+
+    /** Returns latitude for geographic center of country. */
+    public double getLat() {
+      return lat;
+    }
+
+    /** Returns longitude of geographic center of country. */
+    public double getLng() {
+      return lng;
+    }
+
+    /** Returns "isoCode, englishName" keys of the country's languages. */
+    public List<String> getLanguageKeys() {
+      return languageKeys;
+    }
+
+    /** Returns ISO codes of the country's languages, in the order of getLanguageKeys. */
+    public List<String> getIsoCodes() {
+      return isoCodes;
+    }
+  }
+}
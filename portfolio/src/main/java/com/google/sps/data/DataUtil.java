@@ -1,30 +1,225 @@
 package com.google.sps.data;
 
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.sps.metrics.DatastoreMetrics;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /** Class containing util functions. */
 public final class DataUtil {
+
+  /** Url of the task that copies a user's display name onto their comments and markers. */
+  public static final String UPDATE_DISPLAY_NAME_URL = "/tasks/update-display-name";
+
+  /** Url of the task that gives markers saved before geohashes were stored a geohash. */
+  public static final String BACKFILL_MARKERS_URL = "/tasks/backfill-markers";
+
+  /** Url of the task that retries a marker cluster update that kept conflicting. */
+  public static final String UPDATE_CLUSTERS_URL = "/tasks/update-clusters";
+
+  /** Url of the task that deletes tombstones of markers deleted too long ago to sync. */
+  public static final String PRUNE_TOMBSTONES_URL = "/tasks/prune-tombstones";
+
+  /** Url of the task that deletes shared translations that have expired. */
+  public static final String PRUNE_TRANSLATION_CACHE_URL = "/tasks/prune-translation-cache";
+
+  private static final int DISPLAY_NAME_CACHE_SIZE = 10000;
+  private static final long DISPLAY_NAME_CACHE_TTL_MILLIS = 10 * 60 * 1000;
+
+  // Set "sps.displayNameCache.useMemcache" in appengine-web.xml to share names across instances
+  private static final DisplayNameCache displayNameCache =
+      new DisplayNameCache(DISPLAY_NAME_CACHE_SIZE, DISPLAY_NAME_CACHE_TTL_MILLIS,
+          Boolean.getBoolean("sps.displayNameCache.useMemcache"));
+
+  private static final CommentsFeedCache commentsFeedCache = new CommentsFeedCache();
+
+  private static final int COMMENT_QUEUE_CAPACITY = 1000;
+  private static final int COMMENT_QUEUE_GROUP_SIZE = 100;
+  private static final long COMMENT_QUEUE_FLUSH_INTERVAL_MILLIS = 1000;
+
+  // Set "sps.comments.writeBehind" in appengine-web.xml to queue comments instead of
+  // saving them during the request. Requires manual or basic scaling.
+  private static final CommentWriteBehindQueue commentWriteBehindQueue =
+      Boolean.getBoolean("sps.comments.writeBehind")
+          ? new CommentWriteBehindQueue(COMMENT_QUEUE_CAPACITY, COMMENT_QUEUE_GROUP_SIZE,
+              COMMENT_QUEUE_FLUSH_INTERVAL_MILLIS)
+          : null;
+
+  private static final int TRANSLATION_CACHE_SIZE = 20000;
+  private static final long TRANSLATION_CACHE_TTL_MILLIS = 24 * 60 * 60 * 1000;
+  private static final long TRANSLATION_CACHE_SHARED_TTL_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+  // Set "sps.translationCache.shared" in appengine-web.xml to keep translations in
+  // memcache and Datastore, shared across instances and restarts
+  private static final TranslationCache translationCache =
+      new TranslationCache(TRANSLATION_CACHE_SIZE, TRANSLATION_CACHE_TTL_MILLIS,
+          Boolean.getBoolean("sps.translationCache.shared"), TRANSLATION_CACHE_SHARED_TTL_MILLIS);
+
+  // Set "sps.translator.fake" in appengine-web.xml to translate with a local fake, with
+  // calls shaped by "sps.translator.fake.latency" and "sps.translator.fake.errorRate"
+  private static final Translator translator =
+      Boolean.getBoolean("sps.translator.fake")
+          ? new FakeTranslator(
+              FakeTranslator.Latency.parse(
+                  System.getProperty("sps.translator.fake.latency", "lognormal:100,0.5")),
+              Double.parseDouble(System.getProperty("sps.translator.fake.errorRate", "0")))
+          : new CloudTranslator();
+
+  private static final long MARKER_SNAPSHOT_REFRESH_INTERVAL_MILLIS = 1000;
+
+  // Set "sps.markers.snapshot" in appengine-web.xml to serve markers from memory
+  private static final MarkerSnapshot markerSnapshot =
+      Boolean.getBoolean("sps.markers.snapshot")
+          ? new MarkerSnapshot(MARKER_SNAPSHOT_REFRESH_INTERVAL_MILLIS)
+          : null;
+
   /**
   * Returns user's most recently set displayName in Datastore 
   * or returns empty string if user has not logged in before.
   */
   public static String getUserDisplayName(String id) {
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    Query query =
-        new Query("UserInfo")
-        .setFilter(new Query.FilterPredicate("id", Query.FilterOperator.EQUAL, id));
-    PreparedQuery results = datastore.prepare(query);
-    Entity entity = results.asSingleEntity();
-    
+    String cachedDisplayName = displayNameCache.get(id);
+    if (cachedDisplayName != null) {
+      return cachedDisplayName;
+    }
+
+    UserProfileRepository userProfiles = new UserProfileRepository();
+    Entity entity = userProfiles.get(id);
+
     // User has never left a comment before.
-    if (entity == null) {
-      return "";
+    String displayName = entity == null ? null : (String) entity.getProperty("displayName");
+    if (displayName == null) {
+      displayName = "";
+    }
+
+    displayNameCache.put(id, displayName);
+    return displayName;
+  }
+
+  /**
+   * Saves entity added by user with id and the user's displayName in one batched
+   * put, and returns once both are durable. The user's UserInfo entity is only
+   * rewritten if displayName differs from the one in Datastore. If it does, the name
+   * stored on the user's existing comments and markers is updated in the background.
+   */
+  public static void putUserContent(Entity entity, String id, String displayName) {
+    putUserContent(Collections.singletonList(new UserContent(entity, id, displayName)));
+  }
+
+  /**
+   * Saves every entity in contents, along with the UserInfo entities of users whose
+   * display name differs from the one in Datastore, in one batched put and returns
+   * once all are durable. Stored names are read with one batched get beforehand.
+   * When a user appears more than once, their last display name is kept.
+   */
+  public static void putUserContent(List<UserContent> contents) {
+    Map<String, String> displayNames = new LinkedHashMap<>();
+    List<Entity> entities = new ArrayList<>();
+    for (UserContent content : contents) {
+      displayNames.put(content.getId(), content.getDisplayName());
+      entities.add(content.getEntity());
+    }
+
+    // Compare with the stored names rather than cached ones, which another instance
+    // may have made stale, so that a changed name is never skipped
+    Map<String, Entity> userInfoEntities =
+        new UserProfileRepository().getAll(displayNames.keySet());
+
+    // Only rewrite UserInfo of users whose display name changed
+    Map<String, String> previousDisplayNames = new HashMap<>();
+    for (Map.Entry<String, String> entry : displayNames.entrySet()) {
+      String id = entry.getKey();
+      Entity storedEntity = userInfoEntities.get(id);
+      String previousDisplayName =
+          storedEntity == null ? null : (String) storedEntity.getProperty("displayName");
+      if (previousDisplayName == null) {
+        previousDisplayName = "";
+      }
+      if (!previousDisplayName.equals(entry.getValue())) {
+        previousDisplayNames.put(id, previousDisplayName);
+
+        Entity userInfoEntity = new Entity(UserProfileRepository.createKey(id));
+        userInfoEntity.setUnindexedProperty("id", id);
+        userInfoEntity.setProperty("displayName", entry.getValue());
+        entities.add(userInfoEntity);
+      }
+    }
+
+    AsyncDatastoreService datastore = DatastoreMetrics.getAsyncDatastoreService();
+    Future<?> put = datastore.put(entities);
+    try {
+      put.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while saving entities");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
     }
 
-    return (String) entity.getProperty("displayName");
+    for (Map.Entry<String, String> entry : previousDisplayNames.entrySet()) {
+      String id = entry.getKey();
+      cacheUserDisplayName(id, displayNames.get(id));
+
+      // Rewrite name stored on the user's existing comments and markers
+      if (!entry.getValue().isEmpty()) {
+        queueDisplayNameUpdate(id);
+      }
+    }
+  }
+
+  /** Updates cached displayName for user after their UserInfo entity has been written. */
+  public static void cacheUserDisplayName(String id, String displayName) {
+    displayNameCache.put(id, displayName);
+  }
+
+  /**
+   * Queues background rewrite of the display name stored on every comment and
+   * marker left by user with id. Called after the user's display name changes.
+   */
+  public static void queueDisplayNameUpdate(String id) {
+    QueueFactory.getDefaultQueue()
+        .add(TaskOptions.Builder.withUrl(UPDATE_DISPLAY_NAME_URL).param("id", id));
+  }
+
+  /** Returns cache shared by all display name lookups on this instance. */
+  public static DisplayNameCache getDisplayNameCache() {
+    return displayNameCache;
+  }
+
+  /** Returns snapshot cache for the newest page of comments on this instance. */
+  public static CommentsFeedCache getCommentsFeedCache() {
+    return commentsFeedCache;
+  }
+
+  /** Returns queue that posted comments are saved through, or null if they are saved directly. */
+  public static CommentWriteBehindQueue getCommentWriteBehindQueue() {
+    return commentWriteBehindQueue;
+  }
+
+  /** Returns in-memory copy of all markers, or null if markers are read from Datastore. */
+  public static MarkerSnapshot getMarkerSnapshot() {
+    return markerSnapshot;
+  }
+
+  /** Returns translator used by the translate servlet. */
+  public static Translator getTranslator() {
+    return translator;
+  }
+
+  /** Returns cache of text translated by the translate servlet. */
+  public static TranslationCache getTranslationCache() {
+    return translationCache;
   }
 }
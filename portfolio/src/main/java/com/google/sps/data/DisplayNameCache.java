@@ -0,0 +1,165 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, in-process cache of user display names with time based expiry. Entries
+ * are evicted in least recently used order once the cache is full. When the shared
+ * tier is enabled, misses fall through to memcache so that instances can share
+ * names looked up by each other.
+ */
+public final class DisplayNameCache {
+
+  private static final String MEMCACHE_NAMESPACE = "DisplayNames";
+
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final MemcacheService memcache;
+  private final LinkedHashMap<String, CacheEntry> entries;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Creates cache holding at most maxEntries names for ttlMillis each. If
+   * useMemcache is true, memcache is used as a second, shared tier.
+   */
+  public DisplayNameCache(int maxEntries, long ttlMillis, boolean useMemcache) {
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.memcache =
+        useMemcache ? MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE) : null;
+    // Access order makes iteration start at the least recently used entry
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /** Returns cached display name for id, or null if it is not cached. */
+  public synchronized String get(String id) {
+    String displayName = getLocal(id);
+    if (displayName == null && memcache != null) {
+      displayName = (String) memcache.get(id);
+      if (displayName != null) {
+        putLocal(id, displayName);
+      }
+    }
+
+    if (displayName == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return displayName;
+  }
+
+  /** Returns map containing the cached display name of every id that is cached. */
+  public synchronized Map<String, String> getAll(Collection<String> ids) {
+    Map<String, String> displayNames = new HashMap<>();
+    List<String> remoteIds = new ArrayList<>();
+    for (String id : ids) {
+      String displayName = getLocal(id);
+      if (displayName == null) {
+        remoteIds.add(id);
+      } else {
+        displayNames.put(id, displayName);
+      }
+    }
+
+    if (!remoteIds.isEmpty() && memcache != null) {
+      for (Map.Entry<String, Object> entry : memcache.getAll(remoteIds).entrySet()) {
+        String displayName = (String) entry.getValue();
+        putLocal(entry.getKey(), displayName);
+        displayNames.put(entry.getKey(), displayName);
+      }
+    }
+
+    hits += displayNames.size();
+    misses += ids.size() - displayNames.size();
+    return displayNames;
+  }
+
+  /** Stores displayName for id in every tier, replacing any previous value. */
+  public synchronized void put(String id, String displayName) {
+    putLocal(id, displayName);
+    if (memcache != null) {
+      memcache.put(id, displayName, Expiration.byDeltaMillis((int) ttlMillis));
+    }
+  }
+
+  /** Stores every id, display name pair in displayNames in every tier. */
+  public synchronized void putAll(Map<String, String> displayNames) {
+    for (Map.Entry<String, String> entry : displayNames.entrySet()) {
+      putLocal(entry.getKey(), entry.getValue());
+    }
+    if (memcache != null && !displayNames.isEmpty()) {
+      memcache.putAll(displayNames, Expiration.byDeltaMillis((int) ttlMillis));
+    }
+  }
+
+  /** Returns number of lookups answered by the cache. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** Returns number of lookups that had to go to Datastore. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** Returns number of entries dropped because they expired or the cache was full. */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /** Returns number of entries currently held in process. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private String getLocal(String id) {
+    CacheEntry entry = entries.get(id);
+    if (entry == null) {
+      return null;
+    }
+
+    if (entry.expiresAtMillis <= System.currentTimeMillis()) {
+      entries.remove(id);
+      evictions++;
+      return null;
+    }
+
+    return entry.displayName;
+  }
+
+  private void putLocal(String id, String displayName) {
+    entries.put(id, new CacheEntry(displayName, System.currentTimeMillis() + ttlMillis));
+
+    // Drop least recently used entries until cache is back within its bound
+    Iterator<CacheEntry> iterator = entries.values().iterator();
+    while (entries.size() > maxEntries && iterator.hasNext()) {
+      iterator.next();
+      iterator.remove();
+      evictions++;
+    }
+  }
+
+  /** Cached display name and the time at which it stops being valid. */
+  private static final class CacheEntry {
+    private final String displayName;
+    private final long expiresAtMillis;
+
+    private CacheEntry(String displayName, long expiresAtMillis) {
+      this.displayName = displayName;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Entity;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Request-scoped loader for display names. Servlets add the user id of every row
+ * on a page and then call load() once, so a page costs at most a single batched
+ * Datastore get no matter how many rows it has. Names are served from the
+ * instance's DisplayNameCache when possible.
+ */
+public final class DisplayNameLoader {
+
+  private final Set<String> ids = new LinkedHashSet<>();
+
+  /** Queues id to be fetched by the next call to load(). */
+  public void add(String id) {
+    if (id != null) {
+      ids.add(id);
+    }
+  }
+
+  /**
+   * Returns map from each queued id to the user's display name. Users that have
+   * never set a display name are mapped to an empty string.
+   */
+  public Map<String, String> load() {
+    // Names cached by earlier requests don't need to be fetched again
+    DisplayNameCache cache = DataUtil.getDisplayNameCache();
+    Map<String, String> displayNames = cache.getAll(ids);
+    if (displayNames.size() == ids.size()) {
+      return displayNames;
+    }
+
+    List<String> missingIds = new ArrayList<>();
+    for (String id : ids) {
+      if (!displayNames.containsKey(id)) {
+        missingIds.add(id);
+      }
+    }
+
+    UserProfileRepository userProfiles = new UserProfileRepository();
+    Map<String, Entity> entities = userProfiles.getAll(missingIds);
+
+    Map<String, String> fetchedDisplayNames = new HashMap<>();
+    for (String id : missingIds) {
+      Entity entity = entities.get(id);
+      String displayName = entity == null ? null : (String) entity.getProperty("displayName");
+      fetchedDisplayNames.put(id, displayName == null ? "" : displayName);
+    }
+
+    cache.putAll(fetchedDisplayNames);
+    displayNames.putAll(fetchedDisplayNames);
+    return displayNames;
+  }
+}
@@ -0,0 +1,115 @@
+package com.google.sps.data;
+
+import com.google.cloud.translate.TranslateException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Local stand-in for the Cloud Translation API, for load tests and benchmarks. Each
+ * call waits for a delay drawn from a latency distribution, then either fails like
+ * the API does, at the given error rate, or returns "[isoCode] text".
+ */
+public final class FakeTranslator implements Translator {
+
+  private final Latency latency;
+  private final double errorRate;
+
+  /** Creates translator whose calls take latency and fail with probability errorRate. */
+  public FakeTranslator(Latency latency, double errorRate) {
+    this.latency = latency;
+    this.errorRate = errorRate;
+  }
+
+  @Override
+  public String translate(String text, String isoCode) {
+    call();
+    return "[" + isoCode + "] " + text;
+  }
+
+  @Override
+  public List<String> translate(List<String> texts, String isoCode) {
+    // A list is translated in one call, so takes one delay
+    call();
+    List<String> translatedTexts = new ArrayList<>();
+    for (String text : texts) {
+      translatedTexts.add("[" + isoCode + "] " + text);
+    }
+    return translatedTexts;
+  }
+
+  private void call() {
+    Random random = ThreadLocalRandom.current();
+    long delayMillis = latency.nextMillis(random);
+    if (delayMillis > 0) {
+      try {
+        Thread.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new TranslateException(new IOException("Interrupted while translating"));
+      }
+    }
+
+    if (random.nextDouble() < errorRate) {
+      throw new TranslateException(new IOException("Simulated translation failure"));
+    }
+  }
+
+  /** Distribution that the delay of each call is drawn from. */
+  public interface Latency {
+
+    /** Returns delay of the next call in milliseconds. */
+    long nextMillis(Random random);
+
+    /** Returns latency of exactly millis. */
+    static Latency fixed(long millis) {
+      return random -> millis;
+    }
+
+    /** Returns latency spread evenly between minMillis and maxMillis. */
+    static Latency uniform(long minMillis, long maxMillis) {
+      return random -> minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+    }
+
+    /**
+     * Returns latency around medianMillis with a long tail, as network calls have. A
+     * larger sigma gives a longer tail; 0.5 puts the 99th percentile at about 3.2
+     * times the median.
+     */
+    static Latency logNormal(double medianMillis, double sigma) {
+      return random -> Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    /**
+     * Returns latency described by spec, one of "fixed:millis", "uniform:min-max" or
+     * "lognormal:median,sigma".
+     * @throws IllegalArgumentException if spec is not in one of those forms
+     */
+    static Latency parse(String spec) {
+      String[] parts = spec.split(":", 2);
+      try {
+        if (parts.length == 2) {
+          switch (parts[0]) {
+            case "fixed":
+              return fixed(Long.parseLong(parts[1]));
+            case "uniform": {
+              String[] bounds = parts[1].split("-");
+              return uniform(Long.parseLong(bounds[0]), Long.parseLong(bounds[1]));
+            }
+            case "lognormal": {
+              String[] params = parts[1].split(",");
+              return logNormal(Double.parseDouble(params[0]), Double.parseDouble(params[1]));
+            }
+            default:
+              break;
+          }
+        }
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        throw new IllegalArgumentException("Malformed latency: " + spec, e);
+      }
+      throw new IllegalArgumentException("Unknown latency: " + spec);
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes coordinates as geohashes, strings where each character narrows the cell
+ * containing the point, so that all points within a cell share its geohash as a
+ * prefix and a cell can be read from Datastore as one range of geohash values.
+ */
+public final class Geohash {
+
+  /** Number of characters stored for each point, giving cells of a few meters. */
+  public static final int PRECISION = 9;
+
+  private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+  private Geohash() {}
+
+  /** Returns geohash of lat, lng with precision characters. */
+  public static String encode(double lat, double lng, int precision) {
+    double minLat = -90;
+    double maxLat = 90;
+    double minLng = -180;
+    double maxLng = 180;
+
+    StringBuilder geohash = new StringBuilder(precision);
+    boolean isLngBit = true;
+    int bits = 0;
+    int value = 0;
+    while (geohash.length() < precision) {
+      // Bits alternate between halving the longitude and the latitude range
+      if (isLngBit) {
+        double mid = (minLng + maxLng) / 2;
+        if (lng >= mid) {
+          value = value * 2 + 1;
+          minLng = mid;
+        } else {
+          value = value * 2;
+          maxLng = mid;
+        }
+      } else {
+        double mid = (minLat + maxLat) / 2;
+        if (lat >= mid) {
+          value = value * 2 + 1;
+          minLat = mid;
+        } else {
+          value = value * 2;
+          maxLat = mid;
+        }
+      }
+      isLngBit = !isLngBit;
+
+      if (++bits == 5) {
+        geohash.append(BASE32.charAt(value));
+        bits = 0;
+        value = 0;
+      }
+    }
+    return geohash.toString();
+  }
+
+  /** Returns bounds of the cell of geohash, as south, west, north and east. */
+  public static double[] bounds(String geohash) {
+    double[] bounds = {-90, -180, 90, 180};
+    boolean isLngBit = true;
+    for (int i = 0; i < geohash.length(); i++) {
+      int value = BASE32.indexOf(geohash.charAt(i));
+      for (int bit = 4; bit >= 0; bit--) {
+        // Same halving as encode, taking the half the bit selects
+        boolean upper = (value >> bit & 1) == 1;
+        int min = isLngBit ? 1 : 0;
+        double mid = (bounds[min] + bounds[min + 2]) / 2;
+        bounds[upper ? min : min + 2] = mid;
+        isLngBit = !isLngBit;
+      }
+    }
+    return bounds;
+  }
+
+  /**
+   * Returns geohashes of the cells covering the box from south to north and west to
+   * east, using the smallest cells, of at most maxPrecision characters, for which at
+   * most maxCells are needed. The box must not cross the antimeridian, that is west
+   * must not be greater than east.
+   */
+  public static List<String> cover(double south, double west, double north, double east,
+      int maxCells, int maxPrecision) {
+    List<String> cells;
+    for (int precision = maxPrecision; precision > 0; precision--) {
+      cells = coverAt(south, west, north, east, precision, maxCells);
+      if (cells != null) {
+        return cells;
+      }
+    }
+    // A single character cell is an eighth of the world, so fall back to the whole world
+    cells = new ArrayList<>();
+    cells.add("");
+    return cells;
+  }
+
+  /** Returns cells of precision covering the box, or null if more than maxCells are needed. */
+  private static List<String> coverAt(double south, double west, double north, double east,
+      int precision, int maxCells) {
+    int lngBits = (5 * precision + 1) / 2;
+    int latBits = 5 * precision / 2;
+    double cellWidth = 360 / Math.pow(2, lngBits);
+    double cellHeight = 180 / Math.pow(2, latBits);
+
+    // Grid indices of the cells containing the corners of the box
+    long firstColumn = (long) Math.floor((west + 180) / cellWidth);
+    long lastColumn = Math.min((long) Math.floor((east + 180) / cellWidth),
+        (long) Math.pow(2, lngBits) - 1);
+    long firstRow = (long) Math.floor((south + 90) / cellHeight);
+    long lastRow = Math.min((long) Math.floor((north + 90) / cellHeight),
+        (long) Math.pow(2, latBits) - 1);
+
+    if ((lastColumn - firstColumn + 1) * (lastRow - firstRow + 1) > maxCells) {
+      return null;
+    }
+
+    // Encode the center of each cell, which lies inside exactly that cell
+    List<String> cells = new ArrayList<>();
+    for (long row = firstRow; row <= lastRow; row++) {
+      for (long column = firstColumn; column <= lastColumn; column++) {
+        double lat = (row + 0.5) * cellHeight - 90;
+        double lng = (column + 0.5) * cellWidth - 180;
+        cells.add(encode(lat, lng, precision));
+      }
+    }
+    return cells;
+  }
+}
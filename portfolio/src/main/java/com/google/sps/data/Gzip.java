@@ -0,0 +1,41 @@
+package com.google.sps.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses response bodies that are kept and sent many times. Bodies compressed
+ * as they are streamed use CompressionFilter instead.
+ */
+public final class Gzip {
+
+  // Kept bodies are compressed once per version, and the marker snapshot may get a new
+  // version every second, so the default level gives nearly the best ratio for a
+  // fraction of the time BEST_COMPRESSION takes on large bodies
+  private static final int COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+  /** Writes a response body to out. */
+  public interface Body {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  private Gzip() {}
+
+  /** Returns body gzipped. */
+  public static byte[] compress(Body body) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(bytes) {
+          {
+            def.setLevel(COMPRESSION_LEVEL);
+          }
+        }) {
+      body.writeTo(out);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to compress response body", e);
+    }
+    return bytes.toByteArray();
+  }
+}
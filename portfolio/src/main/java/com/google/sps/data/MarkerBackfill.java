@@ -0,0 +1,130 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.sps.metrics.DatastoreMetrics;
+import java.util.ConcurrentModificationException;
+
+/**
+ * Tracks the one-time backfill of markers saved before geohashes and versions were
+ * stored with them. Such markers are missing from viewport reads, clusters and
+ * change syncs until the backfill task gives them both and counts them in their
+ * clusters, so it is started as soon as a request notices it hasn't finished, and
+ * hourly by cron in case a run stopped partway.
+ */
+public final class MarkerBackfill {
+
+  private static final Key STATE_KEY = KeyFactory.createKey("MarkerBackfill", "geohash");
+
+  // How long an unfinished backfill is assumed to stay unfinished before checking again
+  private static final long CHECK_INTERVAL_MILLIS = 60 * 1000;
+
+  private static final int MAX_ATTEMPTS = 3;
+
+  // Name of the task starting the backfill, so instances noticing it at once start one
+  private static final String START_TASK_NAME = "backfill-markers-start";
+
+  private static volatile boolean done;
+  private static volatile long checkedAtMillis;
+  private static volatile boolean started;
+
+  private MarkerBackfill() {}
+
+  /** Returns true once every marker has been given a geohash and version. */
+  public static boolean isDone() {
+    // A finished backfill never becomes unfinished, so only a negative answer expires
+    if (done || System.currentTimeMillis() - checkedAtMillis < CHECK_INTERVAL_MILLIS) {
+      return done;
+    }
+
+    try {
+      DatastoreMetrics.getDatastoreService().get(STATE_KEY);
+      done = true;
+    } catch (EntityNotFoundException e) {
+      checkedAtMillis = System.currentTimeMillis();
+    }
+    return done;
+  }
+
+  /** Queues the task starting the backfill, once per instance. */
+  public static void start() {
+    if (started) {
+      return;
+    }
+    started = true;
+    try {
+      QueueFactory.getDefaultQueue().add(
+          TaskOptions.Builder.withUrl(DataUtil.BACKFILL_MARKERS_URL).taskName(START_TASK_NAME));
+    } catch (TaskAlreadyExistsException e) {
+      // Another instance started it, or cron will restart it if that run stopped
+    }
+  }
+
+  /** Records that the backfill has finished. */
+  public static void markDone() {
+    Entity state = new Entity(STATE_KEY);
+    state.setUnindexedProperty("doneAtMillis", System.currentTimeMillis());
+    DatastoreMetrics.getDatastoreService().put(state);
+    done = true;
+  }
+
+  /**
+   * Reads the saved marker with key again and fills it in, in one transaction, so
+   * that a marker deleted, edited or filled in since it was read by a query is left
+   * as it is. Returns the marker if this call filled it in, in which case it still
+   * has to be counted in its clusters, and null otherwise.
+   * @throws ConcurrentModificationException if the marker kept changing meanwhile
+   */
+  public static Entity fillSaved(Key key) {
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+    for (int attempt = 1; ; attempt++) {
+      Transaction transaction = datastore.beginTransaction();
+      try {
+        Entity marker;
+        try {
+          marker = datastore.get(transaction, key);
+        } catch (EntityNotFoundException e) {
+          return null;
+        }
+        if (!fill(marker)) {
+          return null;
+        }
+        datastore.put(transaction, marker);
+        transaction.commit();
+        return marker;
+      } catch (ConcurrentModificationException e) {
+        if (attempt == MAX_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  /**
+   * Gives marker the geohash of its position and a new version if it has no
+   * geohash. Returns true if marker was changed, in which case it still has to be
+   * saved and counted in its clusters.
+   */
+  public static boolean fill(Entity marker) {
+    if (marker.hasProperty("geohash")) {
+      return false;
+    }
+
+    double lat = (double) marker.getProperty("lat");
+    double lng = (double) marker.getProperty("lng");
+    marker.setProperty("geohash", Geohash.encode(lat, lng, Geohash.PRECISION));
+    marker.setProperty("version", MarkerChanges.nextVersion());
+    return true;
+  }
+}
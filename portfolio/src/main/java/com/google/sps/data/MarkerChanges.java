@@ -0,0 +1,83 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+
+/**
+ * Change versions that let clients fetch only the markers added, edited or deleted
+ * since they last synced. Every marker write stores a version taken from the clock,
+ * and every delete leaves a MarkerTombstone entity with the version of the delete.
+ *
+ * <p>Versions are only ordered across instances as well as their clocks are, and
+ * queries on them are eventually consistent, so clients are told they are synced up
+ * to a version SETTLE_MILLIS in the past. Changes newer than that may be sent again
+ * on the next sync, which clients apply by key.
+ *
+ * <p>Tombstones are deleted once they are MAX_SYNC_AGE_MILLIS old, so clients that
+ * last synced before then have to read all markers again instead.
+ */
+public final class MarkerChanges {
+
+  /** Kind of the entities recording deleted markers. */
+  public static final String TOMBSTONE_KIND = "MarkerTombstone";
+
+  /** Longest a client can go between syncs before it has to read all markers again. */
+  public static final long MAX_SYNC_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+  // How long a change can take to show up in queries on its version
+  private static final long SETTLE_MILLIS = 10 * 1000;
+
+  private static long lastVersion;
+
+  private MarkerChanges() {}
+
+  /** Returns version for a marker change, greater than any taken before on this instance. */
+  public static synchronized long nextVersion() {
+    lastVersion = Math.max(lastVersion + 1, System.currentTimeMillis());
+    return lastVersion;
+  }
+
+  /**
+   * Returns version a client will have seen every change up to once it has read all
+   * changes after since, if it reads them now.
+   */
+  public static long getSyncedVersion(long since) {
+    return Math.max(since, System.currentTimeMillis() - SETTLE_MILLIS);
+  }
+
+  /**
+   * Returns true if every change after version since can still be read, which is no
+   * longer the case once tombstones newer than since may have been deleted.
+   */
+  public static boolean canSyncFrom(long since) {
+    return since >= System.currentTimeMillis() - MAX_SYNC_AGE_MILLIS;
+  }
+
+  /** Returns keys-only query for tombstones old enough to be deleted. */
+  public static Query createExpiredTombstonesQuery() {
+    // Allowing for clocks that run behind keeps tombstones any client can still sync from
+    long expiredBefore = System.currentTimeMillis() - MAX_SYNC_AGE_MILLIS - SETTLE_MILLIS;
+    return new Query(TOMBSTONE_KIND)
+        .setFilter(new FilterPredicate("version", FilterOperator.LESS_THAN, expiredBefore))
+        .setKeysOnly();
+  }
+
+  /** Returns tombstone recording that marker with key was deleted. */
+  public static Entity createTombstone(Key key) {
+    Entity tombstone = new Entity(TOMBSTONE_KIND, KeyFactory.keyToString(key));
+    tombstone.setProperty("version", nextVersion());
+    return tombstone;
+  }
+
+  /** Returns query for entities of kind changed after version since, oldest first. */
+  public static Query createChangedQuery(String kind, long since) {
+    return new Query(kind)
+        .setFilter(new FilterPredicate("version", FilterOperator.GREATER_THAN, since))
+        .addSort("version", SortDirection.ASCENDING);
+  }
+}
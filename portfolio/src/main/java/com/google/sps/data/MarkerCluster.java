@@ -0,0 +1,38 @@
+package com.google.sps.data;
+
+/** Class containing a group of nearby markers shown as one when the map is zoomed out. */
+public class MarkerCluster {
+
+  private final double lat;
+  private final double lng;
+  private final long count;
+  private final String sampleContent;
+
+  /** Populates cluster of count markers centered at lat, lng. */
+  public MarkerCluster(double lat, double lng, long count, String sampleContent) {
+    this.lat = lat;
+    this.lng = lng;
+    this.count = count;
+    this.sampleContent = sampleContent;
+  }
+
+  /** Returns latitude of the centroid of the clustered markers. */
+  public double getLat() {
+    return lat;
+  }
+
+  /** Returns longitude of the centroid of the clustered markers. */
+  public double getLng() {
+    return lng;
+  }
+
+  /** Returns number of markers in cluster. */
+  public long getCount() {
+    return count;
+  }
+
+  /** Returns description of one of the clustered markers. */
+  public String getSampleContent() {
+    return sampleContent;
+  }
+}
@@ -0,0 +1,447 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.sps.metrics.DatastoreMetrics;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Grid of marker clusters, one level per cluster geohash precision. Each
+ * MarkerCluster entity holds the count, coordinate sums and a sample of the markers
+ * whose geohash starts with its cell, and is updated as markers are added, edited
+ * and deleted, so a zoomed out map is read as a few hundred clusters rather than
+ * every marker.
+ */
+public final class MarkerClusterIndex {
+
+  /** Kind of the entities holding clusters. */
+  public static final String KIND = "MarkerCluster";
+
+  // Geohash precisions clusters are kept at, from the most zoomed out level
+  private static final int MIN_PRECISION = 2;
+  private static final int MAX_PRECISION = 4;
+
+  // Highest map zoom served from each precision, clusters of about 32 to 64 pixels
+  private static final int[] MAX_ZOOMS = {2, 5, 8};
+
+  /** Operations a queued retry of a failed update may name. */
+  public static final String ADD = "add";
+  public static final String REMOVE = "remove";
+  public static final String UPDATE_CONTENT = "updateContent";
+
+  // Kind of the records of applied updates, which make retrying an update safe
+  private static final String UPDATE_KIND = "MarkerClusterUpdate";
+
+  private static final int MAX_ATTEMPTS = 3;
+
+  // Most entity groups a cross-group transaction may touch
+  private static final int MAX_TRANSACTION_GROUPS = 25;
+
+  private static final Logger logger = Logger.getLogger(MarkerClusterIndex.class.getName());
+
+  private MarkerClusterIndex() {}
+
+  /**
+   * Returns geohash precision of the clusters shown at map zoom, or 0 if the map is
+   * zoomed in far enough to show individual markers.
+   */
+  public static int getPrecision(int zoom) {
+    for (int i = 0; i < MAX_ZOOMS.length; i++) {
+      if (zoom <= MAX_ZOOMS[i]) {
+        return MIN_PRECISION + i;
+      }
+    }
+    return 0;
+  }
+
+  /** Returns query for clusters at precision whose cell starts with prefix. */
+  public static Query createQuery(int precision, String prefix) {
+    String start = precision + ":" + prefix;
+    return new Query(KIND).setFilter(CompositeFilterOperator.and(
+        new FilterPredicate("cell", FilterOperator.GREATER_THAN_OR_EQUAL, start),
+        new FilterPredicate("cell", FilterOperator.LESS_THAN, start + "~")));
+  }
+
+  /** Creates MarkerCluster from cluster entity. */
+  public static MarkerCluster createMarkerCluster(Entity entity) {
+    long count = (long) entity.getProperty("count");
+    double lat = (double) entity.getProperty("latSum") / count;
+    double lng = (double) entity.getProperty("lngSum") / count;
+    return new MarkerCluster(lat, lng, count, (String) entity.getProperty("sampleContent"));
+  }
+
+  /** Counts saved marker in the cluster containing it at every level. */
+  public static void add(Entity marker) {
+    addAll(Collections.singletonList(marker));
+  }
+
+  /**
+   * Counts saved markers in their clusters. Markers are summed per cluster, so that
+   * each cluster is written once, in transactions of up to MAX_TRANSACTION_GROUPS
+   * clusters. Each transaction records that it was applied, so retrying one that
+   * reported failure but committed doesn't count its markers twice. If a transaction
+   * keeps conflicting, the update is queued to be retried.
+   */
+  public static void addAll(List<Entity> markers) {
+    if (!tryAddAll(markers)) {
+      queueRetry(ADD, markers);
+    }
+  }
+
+  /** Counts markers in their clusters, returning false if any transaction failed. */
+  private static boolean tryAddAll(List<Entity> markers) {
+    // Markers saved before geohashes were stored are clustered when they are backfilled
+    List<Entity> clustered = new ArrayList<>();
+    Map<Key, List<Entity>> markersByCluster = new LinkedHashMap<>();
+    for (Entity marker : markers) {
+      if (marker.hasProperty("geohash")) {
+        clustered.add(marker);
+        for (Key key : getClusterKeys(marker)) {
+          markersByCluster.computeIfAbsent(key, k -> new ArrayList<>()).add(marker);
+        }
+      }
+    }
+    if (clustered.isEmpty()) {
+      return true;
+    }
+
+    // Records of the transactions applied are kept until all are, so that a retry of
+    // the whole update skips them
+    String updateId = createUpdateId(ADD, clustered);
+    List<Key> keys = new ArrayList<>(markersByCluster.keySet());
+    List<Key> updateKeys = new ArrayList<>();
+    boolean applied = true;
+    for (int start = 0; start < keys.size(); start += MAX_TRANSACTION_GROUPS) {
+      List<Key> group = keys.subList(start, Math.min(start + MAX_TRANSACTION_GROUPS, keys.size()));
+      Key updateKey = createUpdateKey(group, updateId + ":" + start);
+      boolean groupApplied = update(updateKey, group, (clusters, updated, emptied) -> {
+        // Markers are added to the clusters as read on every attempt
+        for (Key key : group) {
+          Entity cluster = clusters.containsKey(key) ? clusters.get(key) : createCluster(key);
+          for (Entity marker : markersByCluster.get(key)) {
+            addToCluster(cluster, marker, 1);
+            setSample(cluster, marker);
+          }
+          updated.add(cluster);
+        }
+      });
+      if (groupApplied) {
+        updateKeys.add(updateKey);
+      }
+      applied &= groupApplied;
+    }
+    if (applied) {
+      DatastoreMetrics.getDatastoreService().delete(updateKeys);
+    }
+    return applied;
+  }
+
+  /**
+   * Removes deleted marker from the cluster containing it at every level. If the
+   * transaction keeps conflicting, the update is queued to be retried.
+   */
+  public static void remove(Entity marker) {
+    if (!tryRemove(marker)) {
+      queueRetry(REMOVE, Collections.singletonList(marker));
+    }
+  }
+
+  /** Removes marker from its clusters, returning false if the transaction failed. */
+  private static boolean tryRemove(Entity marker) {
+    if (!marker.hasProperty("geohash")) {
+      return true;
+    }
+
+    // Pick another sample now, since queries can't run inside the transaction. A
+    // marker from the smallest cell that has one lies in every cell left nonempty.
+    String geohash = (String) marker.getProperty("geohash");
+    Entity replacement = null;
+    for (int precision = MAX_PRECISION; precision >= MIN_PRECISION && replacement == null;
+        precision--) {
+      replacement = findOtherMarker(geohash.substring(0, precision), marker.getKey());
+    }
+
+    String markerKey = KeyFactory.keyToString(marker.getKey());
+    Entity sample = replacement;
+    List<Key> keys = getClusterKeys(marker);
+    Key updateKey =
+        createUpdateKey(keys, createUpdateId(REMOVE, Collections.singletonList(marker)));
+    boolean applied = update(updateKey, keys, (clusters, updated, emptied) -> {
+      for (Entity cluster : clusters.values()) {
+        if ((long) cluster.getProperty("count") <= 1) {
+          emptied.add(cluster.getKey());
+          continue;
+        }
+
+        addToCluster(cluster, marker, -1);
+        if (markerKey.equals(cluster.getProperty("sampleKey")) && sample != null) {
+          setSample(cluster, sample);
+        }
+        updated.add(cluster);
+      }
+    });
+    if (applied) {
+      DatastoreMetrics.getDatastoreService().delete(updateKey);
+    }
+    return applied;
+  }
+
+  /**
+   * Updates the sample content of clusters whose sample is edited marker. If the
+   * transaction keeps conflicting, the update is queued to be retried.
+   */
+  public static void updateContent(Entity marker) {
+    if (!tryUpdateContent(marker)) {
+      queueRetry(UPDATE_CONTENT, Collections.singletonList(marker));
+    }
+  }
+
+  /** Updates samples that are marker, returning false if the transaction failed. */
+  private static boolean tryUpdateContent(Entity marker) {
+    if (!marker.hasProperty("geohash")) {
+      return true;
+    }
+
+    // Setting the sample again is harmless, so no record of the update is needed
+    String markerKey = KeyFactory.keyToString(marker.getKey());
+    return update(null, getClusterKeys(marker), (clusters, updated, emptied) -> {
+      for (Entity cluster : clusters.values()) {
+        if (markerKey.equals(cluster.getProperty("sampleKey"))) {
+          setSample(cluster, marker);
+          updated.add(cluster);
+        }
+      }
+    });
+  }
+
+  /**
+   * Applies change to clusters with keys in a transaction, retrying it up to
+   * MAX_ATTEMPTS times, and returns true once it is applied. Unless updateKey is
+   * null, the transaction also saves a record of the update under that key. An
+   * attempt that finds the record knows an earlier one committed and changes
+   * nothing. The caller deletes the record once retrying the update is no longer
+   * possible.
+   */
+  private static boolean update(Key updateKey, List<Key> keys, ClusterChange change) {
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      try {
+        updateInTransaction(updateKey, keys, change);
+        return true;
+      } catch (ConcurrentModificationException | DatastoreTimeoutException e) {
+        if (attempt == MAX_ATTEMPTS) {
+          logger.log(Level.WARNING, "Failed to update " + keys.size() + " clusters", e);
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns key of the record of update updateId to clusters with keys, a child of
+   * the first cluster so that it is in an entity group the transaction already writes.
+   */
+  private static Key createUpdateKey(List<Key> keys, String updateId) {
+    return KeyFactory.createKey(keys.get(0), UPDATE_KIND, updateId);
+  }
+
+  /**
+   * Queues a task retrying operation on markers until it is applied, so that cluster
+   * counts don't drift when an update keeps conflicting with others to hot clusters.
+   * Removed markers are gone by then, so their key, position and geohash are sent.
+   */
+  private static void queueRetry(String operation, List<Entity> markers) {
+    TaskOptions task =
+        TaskOptions.Builder.withUrl(DataUtil.UPDATE_CLUSTERS_URL).param("operation", operation);
+    for (Entity marker : markers) {
+      task.param("key", KeyFactory.keyToString(marker.getKey()));
+      if (operation.equals(REMOVE)) {
+        task.param("lat", String.valueOf(marker.getProperty("lat")))
+            .param("lng", String.valueOf(marker.getProperty("lng")))
+            .param("geohash", (String) marker.getProperty("geohash"));
+      }
+    }
+    try {
+      QueueFactory.getDefaultQueue().add(task);
+    } catch (RuntimeException e) {
+      // Markers themselves are saved, so only the cluster counts drift
+      logger.log(Level.SEVERE, "Failed to queue retry of cluster " + operation + " of "
+          + markers.size() + " markers", e);
+    }
+  }
+
+  /**
+   * Applies operation, queued by a failed update, to markers. Added and edited
+   * markers must be as read now, removed ones as they were when deleted, and in the
+   * same order as when the update was queued, so that it is recognized if applied.
+   * @throws ConcurrentModificationException if the update fails again, so that the
+   *     task is retried
+   */
+  public static void retry(String operation, List<Entity> markers) {
+    boolean applied;
+    if (operation.equals(ADD)) {
+      applied = tryAddAll(markers);
+    } else if (operation.equals(REMOVE)) {
+      applied = markers.isEmpty() || tryRemove(markers.get(0));
+    } else if (operation.equals(UPDATE_CONTENT)) {
+      applied = markers.isEmpty() || tryUpdateContent(markers.get(0));
+    } else {
+      throw new IllegalArgumentException("Unknown operation " + operation);
+    }
+    if (!applied) {
+      throw new ConcurrentModificationException("Cluster " + operation + " conflicted again");
+    }
+  }
+
+  private static void updateInTransaction(Key updateKey, List<Key> keys, ClusterChange change) {
+    List<Key> readKeys = new ArrayList<>(keys);
+    if (updateKey != null) {
+      readKeys.add(updateKey);
+    }
+
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+    Transaction transaction = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+    try {
+      Map<Key, Entity> clusters = datastore.get(transaction, readKeys);
+      if (updateKey != null && clusters.remove(updateKey) != null) {
+        return;
+      }
+
+      List<Entity> updated = new ArrayList<>();
+      List<Key> emptied = new ArrayList<>();
+      change.apply(clusters, updated, emptied);
+      if (updateKey != null) {
+        Entity record = new Entity(updateKey);
+        record.setUnindexedProperty("appliedAtMillis", System.currentTimeMillis());
+        updated.add(record);
+      }
+
+      datastore.put(transaction, updated);
+      datastore.delete(transaction, emptied);
+      transaction.commit();
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /** Returns keys of the clusters containing marker, from the largest. */
+  private static List<Key> getClusterKeys(Entity marker) {
+    String geohash = (String) marker.getProperty("geohash");
+    List<Key> keys = new ArrayList<>();
+    for (int precision = MIN_PRECISION; precision <= MAX_PRECISION; precision++) {
+      keys.add(KeyFactory.createKey(KIND, precision + ":" + geohash.substring(0, precision)));
+    }
+    return keys;
+  }
+
+  /** Adds count markers at the position of marker to cluster, or removes them if negative. */
+  private static void addToCluster(Entity cluster, Entity marker, int count) {
+    double lat = (double) marker.getProperty("lat");
+    double lng = (double) marker.getProperty("lng");
+    cluster.setUnindexedProperty("count", (long) cluster.getProperty("count") + count);
+    cluster.setUnindexedProperty("latSum", (double) cluster.getProperty("latSum") + count * lat);
+    cluster.setUnindexedProperty("lngSum", (double) cluster.getProperty("lngSum") + count * lng);
+  }
+
+  /**
+   * Returns id naming operation on markers, the same whenever it is made with the
+   * same markers, so that an update retried by its caller is recognized too.
+   */
+  private static String createUpdateId(String operation, List<Entity> markers) {
+    List<String> keys = new ArrayList<>();
+    for (Entity marker : markers) {
+      keys.add(KeyFactory.keyToString(marker.getKey()));
+    }
+    Collections.sort(keys);
+
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(operation.getBytes(StandardCharsets.UTF_8));
+      for (String key : keys) {
+        digest.update((byte) ' ');
+        digest.update(key.getBytes(StandardCharsets.UTF_8));
+      }
+
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private static Entity createCluster(Key key) {
+    String cell = key.getName();
+    Entity cluster = new Entity(key);
+    cluster.setProperty("cell", cell);
+    cluster.setUnindexedProperty("count", 0L);
+    cluster.setUnindexedProperty("latSum", 0.0);
+    cluster.setUnindexedProperty("lngSum", 0.0);
+    return cluster;
+  }
+
+  private static void setSample(Entity cluster, Entity marker) {
+    cluster.setUnindexedProperty("sampleKey", KeyFactory.keyToString(marker.getKey()));
+    cluster.setUnindexedProperty("sampleContent", marker.getProperty("content"));
+  }
+
+  /**
+   * Returns a marker in cell other than the one with key, or null if there is none.
+   * Markers are found by key alone, which the built-in geohash index answers, and
+   * only the marker picked is read.
+   */
+  private static Entity findOtherMarker(String cell, Key key) {
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+    Query query = new Query("MarkerDataEntity")
+        .setFilter(CompositeFilterOperator.and(
+            new FilterPredicate("geohash", FilterOperator.GREATER_THAN_OR_EQUAL, cell),
+            new FilterPredicate("geohash", FilterOperator.LESS_THAN, cell + "~")))
+        .setKeysOnly();
+    for (Entity entity : datastore.prepare(query).asList(FetchOptions.Builder.withLimit(2))) {
+      if (!entity.getKey().equals(key)) {
+        try {
+          return datastore.get(entity.getKey());
+        } catch (EntityNotFoundException e) {
+          // Deleted since the query ran, so leave the sample as it is
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Change to clusters read in a transaction, made from their values as read. */
+  private interface ClusterChange {
+    /**
+     * Changes clusters, keyed by cluster key and missing those that don't exist, and
+     * adds those to save to updated and the keys of those to delete to emptied.
+     */
+    void apply(Map<Key, Entity> clusters, List<Entity> updated, List<Key> emptied);
+  }
+}
@@ -0,0 +1,250 @@
+package com.google.sps.data;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes markers in a compact binary format, as an alternative to JSON for clients
+ * that ask for CONTENT_TYPE. Markers are written in blocks, each of which stores
+ * every field as a column:
+ *
+ * <pre>
+ *   block     := count strings(dictionary) key* id* name* lat* lng* strings(content)
+ *   key       := length of prefix shared with the previous key, then the rest as string
+ *   id, name  := index into the block's dictionary, name + 1 with 0 for no name
+ *   lat, lng  := difference from the previous marker in millionths of a degree
+ * </pre>
+ *
+ * <p>The stream starts with a format version byte and ends with a zero count, the
+ * keys of deleted markers and the change version the markers are current as of. All
+ * integers are varints, signed ones zigzag encoded, and strings are UTF-8 prefixed
+ * with their length in bytes.
+ */
+public final class MarkerColumnsWriter {
+
+  /** Content type of the format, which clients request with the Accept header. */
+  public static final String CONTENT_TYPE = "application/x-sps-markers";
+
+  private static final int FORMAT_VERSION = 1;
+
+  // Fixed point positions are accurate to about 10 centimeters
+  private static final double FIXED_POINT_SCALE = 1e6;
+
+  private final OutputStream out;
+
+  /** Creates writer of markers to out, starting with the format version. */
+  public MarkerColumnsWriter(OutputStream out) throws IOException {
+    this.out = new BufferedOutputStream(out);
+    this.out.write(FORMAT_VERSION);
+  }
+
+  /** Writes markers as one block. */
+  public void writeBlock(List<MarkerData> markers) throws IOException {
+    writeBlock(new Block() {
+      @Override
+      public int size() {
+        return markers.size();
+      }
+
+      @Override
+      public String getKey(int i) {
+        return markers.get(i).getKey();
+      }
+
+      @Override
+      public String getId(int i) {
+        return markers.get(i).getId();
+      }
+
+      @Override
+      public String getDisplayName(int i) {
+        return markers.get(i).getDisplayName();
+      }
+
+      @Override
+      public double getLat(int i) {
+        return markers.get(i).getLat();
+      }
+
+      @Override
+      public double getLng(int i) {
+        return markers.get(i).getLng();
+      }
+
+      @Override
+      public String getContent(int i) {
+        return markers.get(i).getContent();
+      }
+    });
+  }
+
+  /** Writes markers of columns at indexes from start up to end as one block. */
+  public void writeBlock(MarkerSnapshot.Columns columns, int[] indexes, int start, int end)
+      throws IOException {
+    writeBlock(new Block() {
+      @Override
+      public int size() {
+        return end - start;
+      }
+
+      @Override
+      public String getKey(int i) {
+        return columns.getKey(indexes[start + i]);
+      }
+
+      @Override
+      public String getId(int i) {
+        return columns.getId(indexes[start + i]);
+      }
+
+      @Override
+      public String getDisplayName(int i) {
+        return columns.getDisplayName(indexes[start + i]);
+      }
+
+      @Override
+      public double getLat(int i) {
+        return columns.getLat(indexes[start + i]);
+      }
+
+      @Override
+      public double getLng(int i) {
+        return columns.getLng(indexes[start + i]);
+      }
+
+      @Override
+      public String getContent(int i) {
+        return columns.getContent(indexes[start + i]);
+      }
+    });
+  }
+
+  private void writeBlock(Block markers) throws IOException {
+    int size = markers.size();
+    if (size == 0) {
+      return;
+    }
+    writeUnsigned(size);
+
+    // Users usually leave several markers, so their ids and names are stored once
+    Map<String, Integer> dictionary = new HashMap<>();
+    int[] ids = new int[size];
+    int[] names = new int[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = addToDictionary(dictionary, markers.getId(i));
+      String displayName = markers.getDisplayName(i);
+      names[i] = displayName == null ? 0 : addToDictionary(dictionary, displayName) + 1;
+    }
+    String[] entries = new String[dictionary.size()];
+    for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+      entries[entry.getValue()] = entry.getKey();
+    }
+
+    writeUnsigned(entries.length);
+    for (String entry : entries) {
+      writeString(entry);
+    }
+
+    // Keys of one kind share a long prefix, so each is written as a change to the last
+    String previousKey = "";
+    for (int i = 0; i < size; i++) {
+      String key = markers.getKey(i);
+      int shared = 0;
+      int maxShared = Math.min(key.length(), previousKey.length());
+      while (shared < maxShared && key.charAt(shared) == previousKey.charAt(shared)) {
+        shared++;
+      }
+      writeUnsigned(shared);
+      writeString(key.substring(shared));
+      previousKey = key;
+    }
+
+    for (int id : ids) {
+      writeUnsigned(id);
+    }
+    for (int name : names) {
+      writeUnsigned(name);
+    }
+
+    long previousLat = 0;
+    for (int i = 0; i < size; i++) {
+      long lat = Math.round(markers.getLat(i) * FIXED_POINT_SCALE);
+      writeSigned(lat - previousLat);
+      previousLat = lat;
+    }
+    long previousLng = 0;
+    for (int i = 0; i < size; i++) {
+      long lng = Math.round(markers.getLng(i) * FIXED_POINT_SCALE);
+      writeSigned(lng - previousLng);
+      previousLng = lng;
+    }
+
+    for (int i = 0; i < size; i++) {
+      String content = markers.getContent(i);
+      writeString(content == null ? "" : content);
+    }
+  }
+
+  /**
+   * Ends the markers and writes deletedKeys and the change version, 0 if unknown,
+   * then flushes the stream.
+   */
+  public void finish(List<String> deletedKeys, long version) throws IOException {
+    writeUnsigned(0);
+    writeUnsigned(deletedKeys.size());
+    for (String key : deletedKeys) {
+      writeString(key);
+    }
+    writeUnsigned(version);
+    out.flush();
+  }
+
+  private static int addToDictionary(Map<String, Integer> dictionary, String value) {
+    Integer index = dictionary.get(value);
+    if (index == null) {
+      index = dictionary.size();
+      dictionary.put(value, index);
+    }
+    return index;
+  }
+
+  private void writeString(String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeUnsigned(bytes.length);
+    out.write(bytes);
+  }
+
+  private void writeSigned(long value) throws IOException {
+    writeUnsigned((value << 1) ^ (value >> 63));
+  }
+
+  private void writeUnsigned(long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  /** Markers of one block, by position within the block. */
+  private interface Block {
+    int size();
+
+    String getKey(int i);
+
+    String getId(int i);
+
+    String getDisplayName(int i);
+
+    double getLat(int i);
+
+    double getLng(int i);
+
+    String getContent(int i);
+  }
+}
@@ -0,0 +1,362 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.sps.metrics.DatastoreMetrics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Instance-local copy of every marker, held in one array per field so that markers
+ * can be served without reading Datastore or creating an object per marker.
+ * Datastore stays the source of truth: the copy is loaded in full once and then
+ * brought up to date with the markers and tombstones changed since its version, at
+ * most once per refresh interval.
+ *
+ * <p>Columns are never modified once published. A refresh that finds changes builds
+ * new Columns, so readers can use the Columns they got for as long as they need.
+ */
+public final class MarkerSnapshot {
+
+  // Number of entities read from Datastore at a time
+  private static final int BATCH_SIZE = 500;
+
+  private final long refreshIntervalMillis;
+
+  // Ids and display names repeat across markers, so each is kept once. Only those of
+  // the current columns are kept, so names of edited and deleted markers can be freed.
+  private Map<String, String> strings = new HashMap<>();
+
+  // Versions of applied markers newer than the version of the current columns. Every
+  // refresh reads the changes of the last few seconds again, since they may not have
+  // settled, and skips those whose version it already applied.
+  private Map<String, Long> appliedVersions = new HashMap<>();
+
+  private volatile Columns columns;
+  private volatile long refreshedAtMillis;
+
+  /** Creates snapshot that checks Datastore for changes at most every refreshIntervalMillis. */
+  public MarkerSnapshot(long refreshIntervalMillis) {
+    this.refreshIntervalMillis = refreshIntervalMillis;
+  }
+
+  /** Returns current columns, first loading or refreshing them if they are due. */
+  public Columns get() {
+    Columns current = columns;
+    if (current != null
+        && System.currentTimeMillis() - refreshedAtMillis < refreshIntervalMillis) {
+      return current;
+    }
+
+    synchronized (this) {
+      // Another request may have refreshed while this one waited
+      if (columns == null || System.currentTimeMillis() - refreshedAtMillis
+          >= refreshIntervalMillis) {
+        // Deletions older than the oldest kept tombstone can only be seen by reloading
+        columns = columns == null || !MarkerChanges.canSyncFrom(columns.version)
+            ? load() : refresh(columns);
+        refreshedAtMillis = System.currentTimeMillis();
+      }
+      return columns;
+    }
+  }
+
+  /** Reads every marker from Datastore. */
+  private Columns load() {
+    // Version is taken before reading so no change made meanwhile can be skipped
+    long version = MarkerChanges.getSyncedVersion(0);
+    appliedVersions = new HashMap<>();
+
+    Map<String, Entity> markers = new LinkedHashMap<>();
+    for (Entity entity : readAll(new Query("MarkerDataEntity"))) {
+      markers.put(KeyFactory.keyToString(entity.getKey()), entity);
+    }
+    return apply(new Columns(0), markers, new ArrayList<String>(), version);
+  }
+
+  /**
+   * Applies markers and tombstones changed since the version of current. Changes
+   * already applied are skipped, so current is only copied if something changed.
+   */
+  private Columns refresh(Columns current) {
+    long version = MarkerChanges.getSyncedVersion(current.version);
+
+    Map<String, Entity> changed = new LinkedHashMap<>();
+    for (Entity entity : readAll(
+        MarkerChanges.createChangedQuery("MarkerDataEntity", current.version))) {
+      String key = KeyFactory.keyToString(entity.getKey());
+      if (!entity.getProperty("version").equals(appliedVersions.get(key))) {
+        changed.put(key, entity);
+      }
+    }
+
+    // Keys are never reused, so a tombstone only matters while its marker is held
+    List<String> deleted = new ArrayList<>();
+    Query tombstones = MarkerChanges.createChangedQuery(
+        MarkerChanges.TOMBSTONE_KIND, current.version).setKeysOnly();
+    for (Entity tombstone : readAll(tombstones)) {
+      String key = tombstone.getKey().getName();
+      if (current.indexes.containsKey(key)) {
+        deleted.add(key);
+      }
+    }
+
+    if (changed.isEmpty() && deleted.isEmpty()) {
+      trackApplied(changed, version);
+      return current.withVersion(version);
+    }
+    return apply(current, changed, deleted, version);
+  }
+
+  /**
+   * Records versions of changed markers that later refreshes will read again, and
+   * forgets those no refresh after version reads.
+   */
+  private void trackApplied(Map<String, Entity> changed, long version) {
+    appliedVersions.values().removeIf(applied -> applied <= version);
+    for (Map.Entry<String, Entity> entry : changed.entrySet()) {
+      Object applied = entry.getValue().getProperty("version");
+      if (applied instanceof Long && (long) applied > version) {
+        appliedVersions.put(entry.getKey(), (long) applied);
+      }
+    }
+  }
+
+  private Iterable<Entity> readAll(Query query) {
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+    return datastore.prepare(query).asIterable(FetchOptions.Builder.withChunkSize(BATCH_SIZE));
+  }
+
+  /** Returns copy of current with changed markers added or replaced and deleted removed. */
+  private Columns apply(Columns current, Map<String, Entity> changed, List<String> deleted,
+      long version) {
+    Columns next = current.copy(current.size + changed.size(), version);
+
+    List<Entity> entities = new ArrayList<>(changed.values());
+    for (int start = 0; start < entities.size(); start += BATCH_SIZE) {
+      List<Entity> batch = entities.subList(start, Math.min(start + BATCH_SIZE, entities.size()));
+
+      // Only markers that predate storing the name with them need a lookup
+      DisplayNameLoader displayNameLoader = new DisplayNameLoader();
+      for (Entity entity : batch) {
+        if (!entity.hasProperty("displayName")) {
+          displayNameLoader.add((String) entity.getProperty("id"));
+        }
+      }
+      Map<String, String> displayNames = displayNameLoader.load();
+
+      for (Entity entity : batch) {
+        put(next, entity, displayNames);
+      }
+    }
+
+    for (String key : deleted) {
+      next.remove(key);
+    }
+    pruneStrings(next);
+    trackApplied(changed, version);
+    return next;
+  }
+
+  /** Drops strings that no marker of columns uses any more. */
+  private void pruneStrings(Columns columns) {
+    Map<String, String> used = new HashMap<>();
+    for (int i = 0; i < columns.size; i++) {
+      keep(used, columns.ids[i]);
+      keep(used, columns.displayNames[i]);
+    }
+    strings = used;
+  }
+
+  private static void keep(Map<String, String> used, String value) {
+    if (value != null) {
+      used.put(value, value);
+    }
+  }
+
+  /** Adds marker entity to columns, or replaces the marker with its key. */
+  private void put(Columns columns, Entity entity, Map<String, String> displayNames) {
+    String key = KeyFactory.keyToString(entity.getKey());
+    String id = (String) entity.getProperty("id");
+    String displayName = entity.hasProperty("displayName")
+        ? (String) entity.getProperty("displayName") : displayNames.get(id);
+
+    Integer index = columns.indexes.get(key);
+    if (index == null) {
+      index = columns.size++;
+      columns.indexes.put(key, index);
+    }
+    columns.keys[index] = key;
+    columns.ids[index] = intern(id);
+    columns.displayNames[index] = intern(displayName);
+    columns.lats[index] = (double) entity.getProperty("lat");
+    columns.lngs[index] = (double) entity.getProperty("lng");
+    columns.contents[index] = (String) entity.getProperty("content");
+  }
+
+  private String intern(String value) {
+    if (value == null) {
+      return null;
+    }
+    String interned = strings.putIfAbsent(value, value);
+    return interned == null ? value : interned;
+  }
+
+  /** Markers of a snapshot, one array per field, indexed from 0 to size - 1. */
+  public static final class Columns {
+    private final long version;
+    private int size;
+    private String[] keys;
+    private String[] ids;
+    private String[] displayNames;
+    private double[] lats;
+    private double[] lngs;
+    private String[] contents;
+    private Map<String, Integer> indexes;
+
+    // Gzipped responses with every marker, by variant, compressed on first use. Those
+    // without the version are shared with columns that only differ in version.
+    private final Map<String, byte[]> gzipBodies = new ConcurrentHashMap<>();
+    private Map<String, byte[]> unversionedGzipBodies = new ConcurrentHashMap<>();
+
+    private Columns(int capacity) {
+      this.version = 0;
+      this.keys = new String[capacity];
+      this.ids = new String[capacity];
+      this.displayNames = new String[capacity];
+      this.lats = new double[capacity];
+      this.lngs = new double[capacity];
+      this.contents = new String[capacity];
+      this.indexes = new HashMap<>();
+    }
+
+    private Columns(Columns columns, long version) {
+      this.version = version;
+      this.size = columns.size;
+      this.keys = columns.keys;
+      this.ids = columns.ids;
+      this.displayNames = columns.displayNames;
+      this.lats = columns.lats;
+      this.lngs = columns.lngs;
+      this.contents = columns.contents;
+      this.indexes = columns.indexes;
+    }
+
+    /** Returns change version that the markers are current as of. */
+    public long getVersion() {
+      return version;
+    }
+
+    /** Returns number of markers. */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Returns body gzipped, kept under variant for as long as these columns are the
+     * snapshot, or until the markers change if body doesn't include the version. Only
+     * bodies that depend on nothing but the columns and variant may be kept, such as
+     * responses with every marker.
+     */
+    public byte[] getGzip(String variant, boolean includesVersion, Gzip.Body body) {
+      Map<String, byte[]> bodies = includesVersion ? gzipBodies : unversionedGzipBodies;
+      return bodies.computeIfAbsent(variant, k -> Gzip.compress(body));
+    }
+
+    /** Returns indexes of the markers inside viewport, or of all markers if it is null. */
+    public int[] select(Viewport viewport) {
+      int[] selected = new int[size];
+      int count = 0;
+      for (int i = 0; i < size; i++) {
+        if (viewport == null || viewport.contains(lats[i], lngs[i])) {
+          selected[count++] = i;
+        }
+      }
+      return Arrays.copyOf(selected, count);
+    }
+
+    /** Returns string representation of the Datastore key of marker at index. */
+    public String getKey(int index) {
+      return keys[index];
+    }
+
+    /** Returns id of user that added marker at index. */
+    public String getId(int index) {
+      return ids[index];
+    }
+
+    /** Returns name of user that added marker at index. */
+    public String getDisplayName(int index) {
+      return displayNames[index];
+    }
+
+    /** Returns latitude of marker at index. */
+    public double getLat(int index) {
+      return lats[index];
+    }
+
+    /** Returns longitude of marker at index. */
+    public double getLng(int index) {
+      return lngs[index];
+    }
+
+    /** Returns description of marker at index. */
+    public String getContent(int index) {
+      return contents[index];
+    }
+
+    /**
+     * Returns columns sharing these arrays, marked as current as of version. Bodies
+     * kept without the version are still valid, so they are shared too.
+     */
+    private Columns withVersion(long version) {
+      Columns columns = new Columns(this, version);
+      columns.unversionedGzipBodies = unversionedGzipBodies;
+      return columns;
+    }
+
+    /** Returns copy of these columns with room for capacity markers. */
+    private Columns copy(int capacity, long version) {
+      Columns copy = new Columns(this, version);
+      copy.keys = Arrays.copyOf(keys, capacity);
+      copy.ids = Arrays.copyOf(ids, capacity);
+      copy.displayNames = Arrays.copyOf(displayNames, capacity);
+      copy.lats = Arrays.copyOf(lats, capacity);
+      copy.lngs = Arrays.copyOf(lngs, capacity);
+      copy.contents = Arrays.copyOf(contents, capacity);
+      copy.indexes = new HashMap<>(indexes);
+      return copy;
+    }
+
+    /** Removes marker with key, moving the last marker into its place. */
+    private void remove(String key) {
+      Integer index = indexes.remove(key);
+      if (index == null) {
+        return;
+      }
+
+      int last = --size;
+      if (index != last) {
+        keys[index] = keys[last];
+        ids[index] = ids[last];
+        displayNames[index] = displayNames[last];
+        lats[index] = lats[last];
+        lngs[index] = lngs[last];
+        contents[index] = contents[last];
+        indexes.put(keys[index], index);
+      }
+      keys[last] = null;
+      ids[last] = null;
+      displayNames[last] = null;
+      contents[last] = null;
+    }
+  }
+}
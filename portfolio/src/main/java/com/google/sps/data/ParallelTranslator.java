@@ -0,0 +1,150 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.ThreadManager;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Translates texts to many languages at once, with one call per language, at most
+ * maxConcurrency calls to the translation service in flight, and all under one
+ * deadline. Languages that are not translated by the deadline, or whose call fails,
+ * are reported as pending rather than holding up the others.
+ *
+ * <p>Calls run on request threads by default, which App Engine only lets live as
+ * long as the request, so calls still running at the deadline are cancelled.
+ */
+public final class ParallelTranslator {
+
+  private static final Logger logger = Logger.getLogger(ParallelTranslator.class.getName());
+
+  private final Translator translator;
+  private final ThreadFactory threadFactory;
+  private final int maxConcurrency;
+  private final long deadlineMillis;
+
+  /**
+   * Creates translator making up to maxConcurrency concurrent calls to translator on
+   * threads from threadFactory, and giving up on those not done within deadlineMillis.
+   * If threadFactory is null, App Engine request threads are used.
+   */
+  public ParallelTranslator(Translator translator, ThreadFactory threadFactory,
+      int maxConcurrency, long deadlineMillis) {
+    this.translator = translator;
+    this.threadFactory = threadFactory;
+    this.maxConcurrency = maxConcurrency;
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  /**
+   * Translates, for each ISO code in textsByIsoCode, its texts to the language the
+   * code identifies. Each language takes one call, whatever its number of texts.
+   * Unless it is null, listener is given each language's translations on the calling
+   * thread as soon as they are made.
+   */
+  public Result translateAll(Map<String, List<String>> textsByIsoCode, Listener listener)
+      throws IOException {
+    Map<String, List<String>> translations = new HashMap<>();
+    Set<String> pending = new LinkedHashSet<>();
+    if (textsByIsoCode.isEmpty()) {
+      return new Result(translations, pending);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(maxConcurrency, textsByIsoCode.size()),
+        threadFactory != null ? threadFactory : ThreadManager.currentRequestThreadFactory());
+    CompletionService<List<String>> completionService = new ExecutorCompletionService<>(executor);
+    Map<Future<List<String>>, String> running = new HashMap<>();
+    for (Map.Entry<String, List<String>> entry : textsByIsoCode.entrySet()) {
+      String isoCode = entry.getKey();
+      List<String> texts = entry.getValue();
+      running.put(completionService.submit(() -> translate(texts, isoCode)), isoCode);
+    }
+
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    try {
+      // Languages are taken in the order they finish until none are left or time is up
+      while (!running.isEmpty()) {
+        Future<List<String>> result = completionService.poll(
+            deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (result == null) {
+          break;
+        }
+
+        String isoCode = running.remove(result);
+        try {
+          translations.put(isoCode, result.get());
+        } catch (ExecutionException e) {
+          logger.log(Level.WARNING, "Failed to translate to " + isoCode, e.getCause());
+          pending.add(isoCode);
+          continue;
+        }
+        if (listener != null) {
+          listener.onTranslated(isoCode, translations.get(isoCode));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // Calls not done by the deadline are cancelled
+      executor.shutdownNow();
+    }
+
+    pending.addAll(running.values());
+    return new Result(translations, pending);
+  }
+
+  /** Returns texts translated to language identified by isoCode, in the same order. */
+  private List<String> translate(List<String> texts, String isoCode) {
+    // A single text uses the plain call, which the list call costs no less than
+    if (texts.size() == 1) {
+      return Collections.singletonList(translator.translate(texts.get(0), isoCode));
+    }
+    return translator.translate(texts, isoCode);
+  }
+
+  /** Receives the translations of each language as they are made. */
+  public interface Listener {
+    /** Called with the texts translated to language identified by isoCode, in order. */
+    void onTranslated(String isoCode, List<String> translatedTexts) throws IOException;
+  }
+
+  /** Translations that were made, keyed by ISO code, and the codes still pending. */
+  public static final class Result {
+    private final Map<String, List<String>> translations;
+    private final Set<String> pending;
+
+    private Result(Map<String, List<String>> translations, Set<String> pending) {
+      this.translations = translations;
+      this.pending = pending;
+    }
+
+    /**
+     * Returns translated texts keyed by ISO code of their language, in the order the
+     * texts were given for that language.
+     */
+    public Map<String, List<String>> getTranslations() {
+      return translations;
+    }
+
+    /** Returns ISO codes of the languages texts were not translated to in time. */
+    public Set<String> getPending() {
+      return pending;
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.sps.metrics.DatastoreMetrics;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of translated text, keyed by a hash of the normalized text and the ISO code
+ * of the language it was translated to. A bounded in-process tier evicts entries in
+ * least recently used order and after a time to live. When the shared tier is
+ * enabled, misses fall through to memcache and then to Datastore, so translations
+ * are reused across instances and survive restarts.
+ */
+public final class TranslationCache {
+
+  /** Kind of the Datastore entities holding shared translations. */
+  public static final String KIND = "TranslationCacheEntry";
+
+  private static final String MEMCACHE_NAMESPACE = "Translations";
+
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final long sharedTtlMillis;
+  private final MemcacheService memcache;
+  private final LinkedHashMap<String, CacheEntry> entries;
+
+  private long hits;
+  private long misses;
+  private long savedCharacters;
+  private long evictions;
+
+  /**
+   * Creates cache holding at most maxEntries translations in process for ttlMillis
+   * each. If useShared is true, translations are also kept in memcache and Datastore
+   * for sharedTtlMillis.
+   */
+  public TranslationCache(int maxEntries, long ttlMillis, boolean useShared,
+      long sharedTtlMillis) {
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.sharedTtlMillis = sharedTtlMillis;
+    this.memcache =
+        useShared ? MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE) : null;
+    // Access order makes iteration start at the least recently used entry
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * Returns text in the form it is cached and translated in: composed Unicode, with
+   * surrounding whitespace removed and other whitespace runs reduced to one space.
+   */
+  public static String normalize(String text) {
+    return Normalizer.normalize(text, Normalizer.Form.NFC).trim().replaceAll("\\s+", " ");
+  }
+
+  /**
+   * Returns map from ISO code to cached translation of normalized text for every
+   * code in isoCodes that has one.
+   */
+  public Map<String, String> getAll(String normalizedText, Collection<String> isoCodes) {
+    String textHash = hash(normalizedText);
+
+    Map<String, String> translations = new HashMap<>();
+    List<String> remoteKeys = new ArrayList<>();
+    synchronized (this) {
+      for (String isoCode : isoCodes) {
+        String translation = getLocal(cacheKey(textHash, isoCode));
+        if (translation == null) {
+          remoteKeys.add(cacheKey(textHash, isoCode));
+        } else {
+          translations.put(isoCode, translation);
+        }
+      }
+    }
+
+    if (!remoteKeys.isEmpty() && memcache != null) {
+      Map<String, String> remote = getShared(remoteKeys);
+      synchronized (this) {
+        for (Map.Entry<String, String> entry : remote.entrySet()) {
+          putLocal(entry.getKey(), entry.getValue());
+          translations.put(isoCode(entry.getKey()), entry.getValue());
+        }
+      }
+    }
+
+    synchronized (this) {
+      hits += translations.size();
+      misses += isoCodes.size() - translations.size();
+      savedCharacters += (long) translations.size() * normalizedText.length();
+    }
+    return translations;
+  }
+
+  /** Stores map from ISO code to translation of normalized text in every tier. */
+  public void putAll(String normalizedText, Map<String, String> translations) {
+    if (translations.isEmpty()) {
+      return;
+    }
+
+    String textHash = hash(normalizedText);
+    Map<String, Object> values = new HashMap<>();
+    for (Map.Entry<String, String> entry : translations.entrySet()) {
+      values.put(cacheKey(textHash, entry.getKey()), entry.getValue());
+    }
+
+    synchronized (this) {
+      for (Map.Entry<String, Object> entry : values.entrySet()) {
+        putLocal(entry.getKey(), (String) entry.getValue());
+      }
+    }
+
+    if (memcache != null) {
+      long now = System.currentTimeMillis();
+      List<Entity> entities = new ArrayList<>();
+      for (Map.Entry<String, Object> entry : values.entrySet()) {
+        Entity entity = new Entity(KIND, entry.getKey());
+        entity.setUnindexedProperty("translation", new Text((String) entry.getValue()));
+        // Indexed so that expired entries can be found and deleted
+        entity.setProperty("expiresAtMillis", now + sharedTtlMillis);
+        entities.add(entity);
+      }
+      DatastoreMetrics.getDatastoreService().put(entities);
+      memcache.putAll(values, Expiration.byDeltaSeconds((int) (sharedTtlMillis / 1000)));
+    }
+  }
+
+  /** Returns keys-only query for shared translations that have expired. */
+  public static Query createExpiredQuery() {
+    return new Query(KIND)
+        .setFilter(new FilterPredicate("expiresAtMillis", FilterOperator.LESS_THAN,
+            System.currentTimeMillis()))
+        .setKeysOnly();
+  }
+
+  /** Returns number of translations answered by the cache. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** Returns number of translations that had to be requested. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** Returns number of characters that did not have to be sent for translation. */
+  public synchronized long getSavedCharacters() {
+    return savedCharacters;
+  }
+
+  /** Returns number of entries dropped because they expired or the cache was full. */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /** Returns number of entries currently held in process. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** Returns translations held in memcache or, failing that, in Datastore by cache key. */
+  private Map<String, String> getShared(List<String> cacheKeys) {
+    Map<String, String> translations = new HashMap<>();
+    for (Map.Entry<String, Object> entry : memcache.getAll(cacheKeys).entrySet()) {
+      translations.put(entry.getKey(), (String) entry.getValue());
+    }
+
+    List<Key> keys = new ArrayList<>();
+    for (String cacheKey : cacheKeys) {
+      if (!translations.containsKey(cacheKey)) {
+        keys.add(KeyFactory.createKey(KIND, cacheKey));
+      }
+    }
+    if (keys.isEmpty()) {
+      return translations;
+    }
+
+    // Copy translations found in Datastore back into memcache for the other instances,
+    // until they expire in Datastore. Those saved together expire together, so they
+    // are grouped by expiry.
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+    long now = System.currentTimeMillis();
+    Map<Long, Map<String, Object>> foundByExpiry = new HashMap<>();
+    for (Entity entity : datastore.get(keys).values()) {
+      long expiresAtMillis = (long) entity.getProperty("expiresAtMillis");
+      if (expiresAtMillis > now) {
+        String translation = ((Text) entity.getProperty("translation")).getValue();
+        foundByExpiry.computeIfAbsent(expiresAtMillis, k -> new HashMap<>())
+            .put(entity.getKey().getName(), translation);
+        translations.put(entity.getKey().getName(), translation);
+      }
+    }
+    for (Map.Entry<Long, Map<String, Object>> entry : foundByExpiry.entrySet()) {
+      memcache.putAll(entry.getValue(), Expiration.onDate(new Date(entry.getKey())));
+    }
+    return translations;
+  }
+
+  private String getLocal(String cacheKey) {
+    CacheEntry entry = entries.get(cacheKey);
+    if (entry == null) {
+      return null;
+    }
+
+    if (entry.expiresAtMillis <= System.currentTimeMillis()) {
+      entries.remove(cacheKey);
+      evictions++;
+      return null;
+    }
+
+    return entry.translation;
+  }
+
+  private void putLocal(String cacheKey, String translation) {
+    entries.put(cacheKey, new CacheEntry(translation, System.currentTimeMillis() + ttlMillis));
+
+    // Drop least recently used entries until cache is back within its bound
+    Iterator<CacheEntry> iterator = entries.values().iterator();
+    while (entries.size() > maxEntries && iterator.hasNext()) {
+      iterator.next();
+      iterator.remove();
+      evictions++;
+    }
+  }
+
+  private static String cacheKey(String textHash, String isoCode) {
+    return textHash + ":" + isoCode;
+  }
+
+  private static String isoCode(String cacheKey) {
+    return cacheKey.substring(cacheKey.indexOf(':') + 1);
+  }
+
+  /** Returns hex encoded SHA-256 hash of text, so keys stay short for long text. */
+  private static String hash(String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest(text.getBytes(StandardCharsets.UTF_8))) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /** Cached translation and the time at which it stops being valid. */
+  private static final class CacheEntry {
+    private final String translation;
+    private final long expiresAtMillis;
+
+    private CacheEntry(String translation, long expiresAtMillis) {
+      this.translation = translation;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+}
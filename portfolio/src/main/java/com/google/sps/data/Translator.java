@@ -0,0 +1,16 @@
+package com.google.sps.data;
+
+import java.util.List;
+
+/**
+ * Translates text to other languages, through the Cloud Translation API or a local
+ * stand-in. Implementations must be safe to call from many threads at once.
+ */
+public interface Translator {
+
+  /** Returns text translated to the language identified by isoCode. */
+  String translate(String text, String isoCode);
+
+  /** Returns texts translated to the language identified by isoCode, in the same order. */
+  List<String> translate(List<String> texts, String isoCode);
+}
@@ -0,0 +1,33 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Entity;
+
+/** Class containing an entity added by a user and the display name they added it under. */
+public final class UserContent {
+
+  private final Entity entity;
+  private final String id;
+  private final String displayName;
+
+  /** Populates content added by user with id under displayName. */
+  public UserContent(Entity entity, String id, String displayName) {
+    this.entity = entity;
+    this.id = id;
+    this.displayName = displayName;
+  }
+
+  /** Returns entity to be saved in Datastore. */
+  public Entity getEntity() {
+    return entity;
+  }
+
+  /** Returns string representation of id of user that added entity. */
+  public String getId() {
+    return id;
+  }
+
+  /** Returns display name set by user when adding entity. */
+  public String getDisplayName() {
+    return displayName;
+  }
+}
@@ -0,0 +1,68 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.sps.metrics.DatastoreMetrics;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks up UserInfo entities by key. Every UserInfo entity is stored with the
+ * user's id as its key name, so lookups are strongly consistent key gets rather
+ * than queries on the "id" property.
+ */
+public final class UserProfileRepository {
+
+  private static final String KIND = "UserInfo";
+
+  private final DatastoreService datastore;
+
+  public UserProfileRepository() {
+    this(DatastoreMetrics.getDatastoreService());
+  }
+
+  public UserProfileRepository(DatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  /** Returns key of the UserInfo entity for user with id. */
+  public static Key createKey(String id) {
+    return KeyFactory.createKey(KIND, id);
+  }
+
+  /** Returns UserInfo entity of user with id, or null if the user has none. */
+  public Entity get(String id) {
+    try {
+      return datastore.get(createKey(id));
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns map from user id to UserInfo entity for every id in ids that has one,
+   * fetched with a single batched get.
+   */
+  public Map<String, Entity> getAll(Collection<String> ids) {
+    List<Key> keys = new ArrayList<>();
+    for (String id : ids) {
+      keys.add(createKey(id));
+    }
+
+    Map<String, Entity> entities = new HashMap<>();
+    if (keys.isEmpty()) {
+      return entities;
+    }
+
+    for (Map.Entry<Key, Entity> entry : datastore.get(keys).entrySet()) {
+      entities.put(entry.getKey().getName(), entry.getValue());
+    }
+    return entities;
+  }
+}
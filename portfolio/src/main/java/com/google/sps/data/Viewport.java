@@ -0,0 +1,77 @@
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Area of the map bounded by two latitudes and two longitudes. */
+public final class Viewport {
+
+  private final double north;
+  private final double south;
+  private final double east;
+  private final double west;
+
+  /**
+   * Creates viewport between the given bounds. West is greater than east when the
+   * viewport crosses the antimeridian.
+   */
+  public Viewport(double north, double south, double east, double west) {
+    if (north < south || north > 90 || south < -90) {
+      throw new IllegalArgumentException("Invalid latitude bounds");
+    }
+    if (Math.abs(east) > 180 || Math.abs(west) > 180) {
+      throw new IllegalArgumentException("Invalid longitude bounds");
+    }
+    this.north = north;
+    this.south = south;
+    this.east = east;
+    this.west = west;
+  }
+
+  /** Returns true if point at lat, lng is inside viewport. */
+  public boolean contains(double lat, double lng) {
+    if (lat < south || lat > north) {
+      return false;
+    }
+    return west <= east ? lng >= west && lng <= east : lng >= west || lng <= east;
+  }
+
+  /** Returns true if the cell of geohash overlaps viewport, even if only on its edge. */
+  public boolean overlaps(String geohash) {
+    double[] bounds = Geohash.bounds(geohash);
+    if (bounds[2] < south || bounds[0] > north) {
+      return false;
+    }
+    return west <= east
+        ? bounds[3] >= west && bounds[1] <= east
+        : bounds[3] >= west || bounds[1] <= east;
+  }
+
+  /** Returns geohashes of at most maxCells cells that together cover the viewport. */
+  public List<String> coveringCells(int maxCells) {
+    return coveringCells(maxCells, Geohash.PRECISION);
+  }
+
+  /**
+   * Returns geohashes, of at most maxPrecision characters, of at most maxCells cells
+   * that together cover the viewport.
+   */
+  public List<String> coveringCells(int maxCells, int maxPrecision) {
+    if (west <= east) {
+      return Geohash.cover(south, west, north, east, maxCells, maxPrecision);
+    }
+
+    // Cover each side of the antimeridian separately
+    List<String> cells = new ArrayList<>(
+        Geohash.cover(south, west, north, 180, maxCells / 2, maxPrecision));
+    cells.addAll(
+        Geohash.cover(south, -180, north, east, maxCells - maxCells / 2, maxPrecision));
+
+    // A side that fell back to the whole world already covers the other side
+    if (cells.contains("")) {
+      cells.clear();
+      cells.add("");
+    }
+    return cells;
+  }
+}
@@ -0,0 +1,177 @@
+package com.google.sps.metrics;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreAttributes;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * AsyncDatastoreService that records calls against RequestMetrics when they are
+ * made. Entities returned by gets arrive later in futures and aren't counted.
+ */
+final class CountingAsyncDatastoreService implements AsyncDatastoreService {
+
+  private final AsyncDatastoreService datastore;
+
+  CountingAsyncDatastoreService(AsyncDatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  @Override
+  public Future<Entity> get(Key key) {
+    recordGet();
+    return datastore.get(key);
+  }
+
+  @Override
+  public Future<Entity> get(Transaction txn, Key key) {
+    recordGet();
+    return datastore.get(txn, key);
+  }
+
+  @Override
+  public Future<Map<Key, Entity>> get(Iterable<Key> keys) {
+    recordGet();
+    return datastore.get(keys);
+  }
+
+  @Override
+  public Future<Map<Key, Entity>> get(Transaction txn, Iterable<Key> keys) {
+    recordGet();
+    return datastore.get(txn, keys);
+  }
+
+  @Override
+  public Future<Key> put(Entity entity) {
+    recordPut();
+    return datastore.put(entity);
+  }
+
+  @Override
+  public Future<Key> put(Transaction txn, Entity entity) {
+    recordPut();
+    return datastore.put(txn, entity);
+  }
+
+  @Override
+  public Future<List<Key>> put(Iterable<Entity> entities) {
+    recordPut();
+    return datastore.put(entities);
+  }
+
+  @Override
+  public Future<List<Key>> put(Transaction txn, Iterable<Entity> entities) {
+    recordPut();
+    return datastore.put(txn, entities);
+  }
+
+  @Override
+  public Future<Void> delete(Key... keys) {
+    recordDelete();
+    return datastore.delete(keys);
+  }
+
+  @Override
+  public Future<Void> delete(Transaction txn, Key... keys) {
+    recordDelete();
+    return datastore.delete(txn, keys);
+  }
+
+  @Override
+  public Future<Void> delete(Iterable<Key> keys) {
+    recordDelete();
+    return datastore.delete(keys);
+  }
+
+  @Override
+  public Future<Void> delete(Transaction txn, Iterable<Key> keys) {
+    recordDelete();
+    return datastore.delete(txn, keys);
+  }
+
+  @Override
+  public PreparedQuery prepare(Query query) {
+    return CountingDatastoreService.recordQuery(datastore.prepare(query));
+  }
+
+  @Override
+  public PreparedQuery prepare(Transaction txn, Query query) {
+    return CountingDatastoreService.recordQuery(datastore.prepare(txn, query));
+  }
+
+  @Override
+  public Future<Transaction> beginTransaction() {
+    return datastore.beginTransaction();
+  }
+
+  @Override
+  public Future<Transaction> beginTransaction(TransactionOptions options) {
+    return datastore.beginTransaction(options);
+  }
+
+  @Override
+  public Transaction getCurrentTransaction() {
+    return datastore.getCurrentTransaction();
+  }
+
+  @Override
+  public Transaction getCurrentTransaction(Transaction returnedIfNoTxn) {
+    return datastore.getCurrentTransaction(returnedIfNoTxn);
+  }
+
+  @Override
+  public Collection<Transaction> getActiveTransactions() {
+    return datastore.getActiveTransactions();
+  }
+
+  @Override
+  public Future<KeyRange> allocateIds(String kind, long num) {
+    return datastore.allocateIds(kind, num);
+  }
+
+  @Override
+  public Future<KeyRange> allocateIds(Key parent, String kind, long num) {
+    return datastore.allocateIds(parent, kind, num);
+  }
+
+  @Override
+  public Future<DatastoreAttributes> getDatastoreAttributes() {
+    return datastore.getDatastoreAttributes();
+  }
+
+  @Override
+  public Future<Map<Index, Index.IndexState>> getIndexes() {
+    return datastore.getIndexes();
+  }
+
+  private static void recordGet() {
+    RequestMetrics metrics = RequestMetrics.current();
+    if (metrics != null) {
+      metrics.recordGet(0);
+    }
+  }
+
+  private static void recordPut() {
+    RequestMetrics metrics = RequestMetrics.current();
+    if (metrics != null) {
+      metrics.recordPut();
+    }
+  }
+
+  private static void recordDelete() {
+    RequestMetrics metrics = RequestMetrics.current();
+    if (metrics != null) {
+      metrics.recordDelete();
+    }
+  }
+}
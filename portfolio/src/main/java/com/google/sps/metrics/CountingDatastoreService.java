@@ -0,0 +1,207 @@
+package com.google.sps.metrics;
+
+import com.google.appengine.api.datastore.DatastoreAttributes;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/** DatastoreService that records gets, puts, deletes and queries against RequestMetrics. */
+final class CountingDatastoreService implements DatastoreService {
+
+  private final DatastoreService datastore;
+
+  CountingDatastoreService(DatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  @Override
+  public Entity get(Key key) throws EntityNotFoundException {
+    RequestMetrics metrics = RequestMetrics.current();
+    if (metrics != null) {
+      // A missing entity still costs the call
+      metrics.recordGet(0);
+    }
+    Entity entity = datastore.get(key);
+    if (metrics != null) {
+      metrics.recordEntitiesRead(1);
+    }
+    return entity;
+  }
+
+  @Override
+  public Entity get(Transaction txn, Key key) throws EntityNotFoundException {
+    RequestMetrics metrics = RequestMetrics.current();
+    if (metrics != null) {
+      metrics.recordGet(0);
+    }
+    Entity entity = datastore.get(txn, key);
+    if (metrics != null) {
+      metrics.recordEntitiesRead(1);
+    }
+    return entity;
+  }
+
+  @Override
+  public Map<Key, Entity> get(Iterable<Key> keys) {
+    return recordGet(datastore.get(keys));
+  }
+
+  @Override
+  public Map<Key, Entity> get(Transaction txn, Iterable<Key> keys) {
+    return recordGet(datastore.get(txn, keys));
+  }
+
+  @Override
+  public Key put(Entity entity) {
+    Key key = datastore.put(entity);
+    recordPut();
+    return key;
+  }
+
+  @Override
+  public Key put(Transaction txn, Entity entity) {
+    Key key = datastore.put(txn, entity);
+    recordPut();
+    return key;
+  }
+
+  @Override
+  public List<Key> put(Iterable<Entity> entities) {
+    List<Key> keys = datastore.put(entities);
+    recordPut();
+    return keys;
+  }
+
+  @Override
+  public List<Key> put(Transaction txn, Iterable<Entity> entities) {
+    List<Key> keys = datastore.put(txn, entities);
+    recordPut();
+    return keys;
+  }
+
+  @Override
+  public void delete(Key... keys) {
+    datastore.delete(keys);
+    recordDelete();
+  }
+
+  @Override
+  public void delete(Transaction txn, Key... keys) {
+    datastore.delete(txn, keys);
+    recordDelete();
+  }
+
+  @Override
+  public void delete(Iterable<Key> keys) {
+    datastore.delete(keys);
+    recordDelete();
+  }
+
+  @Override
+  public void delete(Transaction txn, Iterable<Key> keys) {
+    datastore.delete(txn, keys);
+    recordDelete();
+  }
+
+  @Override
+  public PreparedQuery prepare(Query query) {
+    return recordQuery(datastore.prepare(query));
+  }
+
+  @Override
+  public PreparedQuery prepare(Transaction txn, Query query) {
+    return recordQuery(datastore.prepare(txn, query));
+  }
+
+  @Override
+  public Transaction beginTransaction() {
+    return datastore.beginTransaction();
+  }
+
+  @Override
+  public Transaction beginTransaction(TransactionOptions options) {
+    return datastore.beginTransaction(options);
+  }
+
+  @Override
+  public Transaction getCurrentTransaction() {
+    return datastore.getCurrentTransaction();
+  }
+
+  @Override
+  public Transaction getCurrentTransaction(Transaction returnedIfNoTxn) {
+    return datastore.getCurrentTransaction(returnedIfNoTxn);
+  }
+
+  @Override
+  public Collection<Transaction> getActiveTransactions() {
+    return datastore.getActiveTransactions();
+  }
+
+  @Override
+  public KeyRange allocateIds(String kind, long num) {
+    return datastore.allocateIds(kind, num);
+  }
+
+  @Override
+  public KeyRange allocateIds(Key parent, String kind, long num) {
+    return datastore.allocateIds(parent, kind, num);
+  }
+
+  @Override
+  public KeyRangeState allocateIdRange(KeyRange range) {
+    return datastore.allocateIdRange(range);
+  }
+
+  @Override
+  public DatastoreAttributes getDatastoreAttributes() {
+    return datastore.getDatastoreAttributes();
+  }
+
+  @Override
+  public Map<Index, Index.IndexState> getIndexes() {
+    return datastore.getIndexes();
+  }
+
+  private static Map<Key, Entity> recordGet(Map<Key, Entity> entities) {
+    RequestMetrics metrics = RequestMetrics.current();
+    if (metrics != null) {
+      metrics.recordGet(entities.size());
+    }
+    return entities;
+  }
+
+  private static void recordPut() {
+    RequestMetrics metrics = RequestMetrics.current();
+    if (metrics != null) {
+      metrics.recordPut();
+    }
+  }
+
+  private static void recordDelete() {
+    RequestMetrics metrics = RequestMetrics.current();
+    if (metrics != null) {
+      metrics.recordDelete();
+    }
+  }
+
+  /** Records query and returns it counting its results, or as it is outside a request. */
+  static PreparedQuery recordQuery(PreparedQuery query) {
+    RequestMetrics metrics = RequestMetrics.current();
+    if (metrics == null) {
+      return query;
+    }
+    metrics.recordQuery();
+    return new CountingPreparedQuery(query, metrics);
+  }
+}
@@ -0,0 +1,227 @@
+package com.google.sps.metrics;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * PreparedQuery that counts the entities read from its results against one
+ * RequestMetrics. Each result keeps its own count, which the metrics add up once
+ * when they are reported, so reading an entity costs one field increment. Lazy
+ * results are never fetched further than the caller reads them.
+ */
+final class CountingPreparedQuery implements PreparedQuery {
+
+  private final PreparedQuery query;
+  private final RequestMetrics metrics;
+
+  CountingPreparedQuery(PreparedQuery query, RequestMetrics metrics) {
+    this.query = query;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public List<Entity> asList(FetchOptions fetchOptions) {
+    return new CountingList(query.asList(fetchOptions), metrics.newReadCounter());
+  }
+
+  @Override
+  public QueryResultList<Entity> asQueryResultList(FetchOptions fetchOptions) {
+    return new CountingQueryResultList(
+        query.asQueryResultList(fetchOptions), metrics.newReadCounter());
+  }
+
+  @Override
+  public Iterable<Entity> asIterable(FetchOptions fetchOptions) {
+    return new CountingIterable(query.asIterable(fetchOptions));
+  }
+
+  @Override
+  public QueryResultIterable<Entity> asQueryResultIterable(FetchOptions fetchOptions) {
+    return new CountingIterable(query.asQueryResultIterable(fetchOptions));
+  }
+
+  @Override
+  public Iterable<Entity> asIterable() {
+    return new CountingIterable(query.asIterable());
+  }
+
+  @Override
+  public QueryResultIterable<Entity> asQueryResultIterable() {
+    return new CountingIterable(query.asQueryResultIterable());
+  }
+
+  @Override
+  public Iterator<Entity> asIterator(FetchOptions fetchOptions) {
+    return new CountingIterator(query.asIterator(fetchOptions), metrics.newReadCounter());
+  }
+
+  @Override
+  public Iterator<Entity> asIterator() {
+    return new CountingIterator(query.asIterator(), metrics.newReadCounter());
+  }
+
+  @Override
+  public QueryResultIterator<Entity> asQueryResultIterator(FetchOptions fetchOptions) {
+    return new CountingIterator(
+        query.asQueryResultIterator(fetchOptions), metrics.newReadCounter());
+  }
+
+  @Override
+  public QueryResultIterator<Entity> asQueryResultIterator() {
+    return new CountingIterator(query.asQueryResultIterator(), metrics.newReadCounter());
+  }
+
+  @Override
+  public Entity asSingleEntity() throws TooManyResultsException {
+    Entity entity = query.asSingleEntity();
+    if (entity != null) {
+      metrics.recordEntitiesRead(1);
+    }
+    return entity;
+  }
+
+  @Override
+  public int countEntities(FetchOptions fetchOptions) {
+    return query.countEntities(fetchOptions);
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public int countEntities() {
+    return query.countEntities();
+  }
+
+  /** Iterable whose every iterator counts the entities it returns. */
+  private final class CountingIterable implements QueryResultIterable<Entity> {
+    private final Iterable<Entity> entities;
+
+    private CountingIterable(Iterable<Entity> entities) {
+      this.entities = entities;
+    }
+
+    @Override
+    public QueryResultIterator<Entity> iterator() {
+      return new CountingIterator(entities.iterator(), metrics.newReadCounter());
+    }
+  }
+
+  /**
+   * Iterator that counts the entities it returns. Cursors and indexes are only
+   * available when the wrapped iterator is a QueryResultIterator.
+   */
+  private static final class CountingIterator implements QueryResultIterator<Entity> {
+    private final Iterator<Entity> entities;
+    private final RequestMetrics.ReadCounter counter;
+
+    private CountingIterator(Iterator<Entity> entities, RequestMetrics.ReadCounter counter) {
+      this.entities = entities;
+      this.counter = counter;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return entities.hasNext();
+    }
+
+    @Override
+    public Entity next() {
+      Entity entity = entities.next();
+      counter.entities++;
+      return entity;
+    }
+
+    @Override
+    public void remove() {
+      entities.remove();
+    }
+
+    @Override
+    public List<Index> getIndexList() {
+      return ((QueryResultIterator<Entity>) entities).getIndexList();
+    }
+
+    @Override
+    public Cursor getCursor() {
+      return ((QueryResultIterator<Entity>) entities).getCursor();
+    }
+  }
+
+  /**
+   * List that counts entities up to the furthest one read. Iteration goes through
+   * the wrapped list's own iterator, since AbstractList's would call size() and
+   * fetch the whole of a lazy list.
+   */
+  private static class CountingList extends AbstractList<Entity> {
+    private final List<Entity> entities;
+    private final RequestMetrics.ReadCounter counter;
+
+    private CountingList(List<Entity> entities, RequestMetrics.ReadCounter counter) {
+      this.entities = entities;
+      this.counter = counter;
+    }
+
+    @Override
+    public Entity get(int index) {
+      Entity entity = entities.get(index);
+      counter.entities = Math.max(counter.entities, index + 1);
+      return entity;
+    }
+
+    @Override
+    public int size() {
+      return entities.size();
+    }
+
+    @Override
+    public Iterator<Entity> iterator() {
+      return new Iterator<Entity>() {
+        private final Iterator<Entity> iterator = entities.iterator();
+        private int read;
+
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public Entity next() {
+          Entity entity = iterator.next();
+          read++;
+          counter.entities = Math.max(counter.entities, read);
+          return entity;
+        }
+      };
+    }
+  }
+
+  /** CountingList that also passes on the cursor and indexes of its query. */
+  private static final class CountingQueryResultList extends CountingList
+      implements QueryResultList<Entity> {
+    private final QueryResultList<Entity> entities;
+
+    private CountingQueryResultList(QueryResultList<Entity> entities,
+        RequestMetrics.ReadCounter counter) {
+      super(entities, counter);
+      this.entities = entities;
+    }
+
+    @Override
+    public List<Index> getIndexList() {
+      return entities.getIndexList();
+    }
+
+    @Override
+    public Cursor getCursor() {
+      return entities.getCursor();
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package com.google.sps.metrics;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+
+/**
+ * Hands out Datastore services that record every call against the current
+ * request's RequestMetrics. Use these instead of DatastoreServiceFactory so that
+ * calls show up on /metrics.
+ */
+public final class DatastoreMetrics {
+
+  private DatastoreMetrics() {}
+
+  /** Returns DatastoreService whose calls are counted. */
+  public static DatastoreService getDatastoreService() {
+    return new CountingDatastoreService(DatastoreServiceFactory.getDatastoreService());
+  }
+
+  /** Returns AsyncDatastoreService whose calls are counted. */
+  public static AsyncDatastoreService getAsyncDatastoreService() {
+    return new CountingAsyncDatastoreService(DatastoreServiceFactory.getAsyncDatastoreService());
+  }
+}
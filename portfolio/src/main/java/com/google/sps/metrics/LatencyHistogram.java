@@ -0,0 +1,65 @@
+package com.google.sps.metrics;
+
+import java.io.PrintWriter;
+
+/**
+ * Histogram of request latencies in milliseconds with fixed bucket bounds, from
+ * which approximate percentiles are read.
+ */
+public final class LatencyHistogram {
+
+  private static final double[] BOUNDS_MILLIS =
+      {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+  // Last bucket counts everything above the largest bound
+  private final long[] counts = new long[BOUNDS_MILLIS.length + 1];
+  private long count;
+  private double sumMillis;
+
+  /** Records a request that took latencyMillis. */
+  public synchronized void record(double latencyMillis) {
+    int bucket = 0;
+    while (bucket < BOUNDS_MILLIS.length && latencyMillis > BOUNDS_MILLIS[bucket]) {
+      bucket++;
+    }
+    counts[bucket]++;
+    count++;
+    sumMillis += latencyMillis;
+  }
+
+  /**
+   * Returns upper bound of the bucket containing the given percentile, between 0
+   * and 1, or 0 if nothing has been recorded.
+   */
+  public synchronized double getPercentile(double percentile) {
+    long rank = (long) Math.ceil(percentile * count);
+    long seen = 0;
+    for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        return BOUNDS_MILLIS[i];
+      }
+    }
+    return count == 0 ? 0 : Double.POSITIVE_INFINITY;
+  }
+
+  /** Writes histogram in Prometheus text format as name with the given labels. */
+  public synchronized void write(PrintWriter out, String name, String labels) {
+    long cumulative = 0;
+    for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+      cumulative += counts[i];
+      out.printf("%s_bucket{%s,le=\"%s\"} %d%n", name, labels, format(BOUNDS_MILLIS[i]),
+          cumulative);
+    }
+    out.printf("%s_bucket{%s,le=\"+Inf\"} %d%n", name, labels, count);
+    out.printf("%s_sum{%s} %s%n", name, labels, format(sumMillis));
+    out.printf("%s_count{%s} %d%n", name, labels, count);
+  }
+
+  static String format(double value) {
+    if (Double.isInfinite(value)) {
+      return "+Inf";
+    }
+    return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+  }
+}
@@ -0,0 +1,62 @@
+package com.google.sps.metrics;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Records latency and Datastore calls of every request to the portfolio endpoints.
+ * Requests that make more Datastore calls than the budget, set with the
+ * "sps.metrics.datastoreCallBudget" system property, are logged with a breakdown
+ * of their calls, since that is how N+1 lookups show up.
+ */
+@WebFilter({"/comments", "/markers", "/translate", "/authentication", "/edit-data",
+    "/delete-data"})
+public class MetricsFilter implements Filter {
+
+  private static final Logger logger = Logger.getLogger(MetricsFilter.class.getName());
+
+  private static final int DEFAULT_DATASTORE_CALL_BUDGET = 10;
+
+  private int datastoreCallBudget;
+
+  @Override
+  public void init(FilterConfig filterConfig) {
+    datastoreCallBudget =
+        Integer.getInteger("sps.metrics.datastoreCallBudget", DEFAULT_DATASTORE_CALL_BUDGET);
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    String endpoint = httpRequest.getServletPath();
+
+    long startNanos = System.nanoTime();
+    RequestMetrics metrics = RequestMetrics.start();
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      RequestMetrics.end();
+      double latencyMillis = (System.nanoTime() - startNanos) / 1e6;
+
+      boolean overBudget = metrics.getCalls() > datastoreCallBudget;
+      if (overBudget) {
+        logger.warning(String.format("%s %s made %d Datastore calls (%s)",
+            httpRequest.getMethod(), endpoint, metrics.getCalls(), metrics));
+      }
+
+      MetricsRegistry.record(endpoint, latencyMillis, metrics, overBudget);
+    }
+  }
+
+  @Override
+  public void destroy() {}
+}
@@ -0,0 +1,130 @@
+package com.google.sps.metrics;
+
+import com.google.sps.data.DataUtil;
+import com.google.sps.data.DisplayNameCache;
+import com.google.sps.data.TranslationCache;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Collects request latencies and Datastore call counts per endpoint on this instance. */
+public final class MetricsRegistry {
+
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+  private static final Map<String, EndpointMetrics> endpoints = new TreeMap<>();
+
+  private MetricsRegistry() {}
+
+  /** Records request to endpoint that took latencyMillis and made the calls in metrics. */
+  public static void record(String endpoint, double latencyMillis, RequestMetrics metrics,
+      boolean overBudget) {
+    EndpointMetrics endpointMetrics;
+    synchronized (endpoints) {
+      endpointMetrics = endpoints.computeIfAbsent(endpoint, e -> new EndpointMetrics());
+    }
+    endpointMetrics.record(latencyMillis, metrics, overBudget);
+  }
+
+  /** Writes all metrics in Prometheus text format to out. */
+  public static void write(PrintWriter out) {
+    Map<String, EndpointMetrics> snapshot;
+    synchronized (endpoints) {
+      snapshot = new TreeMap<>(endpoints);
+    }
+
+    out.println("# TYPE sps_request_latency_ms histogram");
+    for (Map.Entry<String, EndpointMetrics> entry : snapshot.entrySet()) {
+      entry.getValue().latency.write(out, "sps_request_latency_ms", label(entry.getKey()));
+    }
+
+    out.println("# TYPE sps_request_latency_percentile_ms gauge");
+    for (Map.Entry<String, EndpointMetrics> entry : snapshot.entrySet()) {
+      for (double percentile : PERCENTILES) {
+        out.printf("sps_request_latency_percentile_ms{%s,quantile=\"%s\"} %s%n",
+            label(entry.getKey()), percentile,
+            LatencyHistogram.format(entry.getValue().latency.getPercentile(percentile)));
+      }
+    }
+
+    out.println("# TYPE sps_datastore_calls_total counter");
+    for (Map.Entry<String, EndpointMetrics> entry : snapshot.entrySet()) {
+      EndpointMetrics metrics = entry.getValue();
+      synchronized (metrics) {
+        String labels = label(entry.getKey());
+        out.printf("sps_datastore_calls_total{%s,op=\"get\"} %d%n", labels, metrics.gets);
+        out.printf("sps_datastore_calls_total{%s,op=\"query\"} %d%n", labels, metrics.queries);
+        out.printf("sps_datastore_calls_total{%s,op=\"put\"} %d%n", labels, metrics.puts);
+        out.printf("sps_datastore_calls_total{%s,op=\"delete\"} %d%n", labels, metrics.deletes);
+      }
+    }
+
+    out.println("# TYPE sps_datastore_entities_read_total counter");
+    for (Map.Entry<String, EndpointMetrics> entry : snapshot.entrySet()) {
+      synchronized (entry.getValue()) {
+        out.printf("sps_datastore_entities_read_total{%s} %d%n",
+            label(entry.getKey()), entry.getValue().entitiesRead);
+      }
+    }
+
+    out.println("# TYPE sps_datastore_over_budget_requests_total counter");
+    for (Map.Entry<String, EndpointMetrics> entry : snapshot.entrySet()) {
+      synchronized (entry.getValue()) {
+        out.printf("sps_datastore_over_budget_requests_total{%s} %d%n",
+            label(entry.getKey()), entry.getValue().overBudget);
+      }
+    }
+
+    DisplayNameCache displayNameCache = DataUtil.getDisplayNameCache();
+    out.println("# TYPE sps_display_name_cache_hits_total counter");
+    out.printf("sps_display_name_cache_hits_total %d%n", displayNameCache.getHits());
+    out.println("# TYPE sps_display_name_cache_misses_total counter");
+    out.printf("sps_display_name_cache_misses_total %d%n", displayNameCache.getMisses());
+    out.println("# TYPE sps_display_name_cache_evictions_total counter");
+    out.printf("sps_display_name_cache_evictions_total %d%n", displayNameCache.getEvictions());
+    out.println("# TYPE sps_display_name_cache_size gauge");
+    out.printf("sps_display_name_cache_size %d%n", displayNameCache.size());
+
+    TranslationCache translationCache = DataUtil.getTranslationCache();
+    out.println("# TYPE sps_translation_cache_hits_total counter");
+    out.printf("sps_translation_cache_hits_total %d%n", translationCache.getHits());
+    out.println("# TYPE sps_translation_cache_misses_total counter");
+    out.printf("sps_translation_cache_misses_total %d%n", translationCache.getMisses());
+    out.println("# TYPE sps_translation_cache_saved_characters_total counter");
+    out.printf("sps_translation_cache_saved_characters_total %d%n",
+        translationCache.getSavedCharacters());
+    out.println("# TYPE sps_translation_cache_evictions_total counter");
+    out.printf("sps_translation_cache_evictions_total %d%n", translationCache.getEvictions());
+    out.println("# TYPE sps_translation_cache_size gauge");
+    out.printf("sps_translation_cache_size %d%n", translationCache.size());
+  }
+
+  private static String label(String endpoint) {
+    return "endpoint=\"" + endpoint.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /** Latencies and Datastore call totals for one endpoint. */
+  private static final class EndpointMetrics {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long gets;
+    private long queries;
+    private long puts;
+    private long deletes;
+    private long entitiesRead;
+    private long overBudget;
+
+    private void record(double latencyMillis, RequestMetrics metrics, boolean isOverBudget) {
+      latency.record(latencyMillis);
+      synchronized (this) {
+        gets += metrics.getGets();
+        queries += metrics.getQueries();
+        puts += metrics.getPuts();
+        deletes += metrics.getDeletes();
+        entitiesRead += metrics.getEntitiesRead();
+        if (isOverBudget) {
+          overBudget++;
+        }
+      }
+    }
+  }
+}
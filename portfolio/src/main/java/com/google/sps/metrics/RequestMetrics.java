@@ -0,0 +1,113 @@
+package com.google.sps.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts Datastore calls made while handling a single request. The filter starts
+ * a RequestMetrics for each request on the thread that handles it, and
+ * DatastoreMetrics records calls against whichever one is current.
+ */
+public final class RequestMetrics {
+
+  private static final ThreadLocal<RequestMetrics> current = new ThreadLocal<>();
+
+  private long gets;
+  private long queries;
+  private long puts;
+  private long deletes;
+  private long entitiesRead;
+
+  // Counts of entities read from query results, summed only when the total is asked for
+  private final List<ReadCounter> readCounters = new ArrayList<>();
+
+  /** Starts counting Datastore calls made by this thread and returns the counts. */
+  public static RequestMetrics start() {
+    RequestMetrics metrics = new RequestMetrics();
+    current.set(metrics);
+    return metrics;
+  }
+
+  /** Stops counting Datastore calls made by this thread. */
+  public static void end() {
+    current.remove();
+  }
+
+  /** Returns counts for the request being handled by this thread, or null if there is none. */
+  static RequestMetrics current() {
+    return current.get();
+  }
+
+  void recordGet(int entities) {
+    gets++;
+    entitiesRead += entities;
+  }
+
+  void recordQuery() {
+    queries++;
+  }
+
+  void recordEntitiesRead(int entities) {
+    entitiesRead += entities;
+  }
+
+  /** Returns new counter for the entities read from one query's results. */
+  ReadCounter newReadCounter() {
+    ReadCounter counter = new ReadCounter();
+    readCounters.add(counter);
+    return counter;
+  }
+
+  void recordPut() {
+    puts++;
+  }
+
+  void recordDelete() {
+    deletes++;
+  }
+
+  /** Returns number of get calls, single or batched. */
+  public long getGets() {
+    return gets;
+  }
+
+  /** Returns number of queries prepared. */
+  public long getQueries() {
+    return queries;
+  }
+
+  /** Returns number of put calls, single or batched. */
+  public long getPuts() {
+    return puts;
+  }
+
+  /** Returns number of delete calls, single or batched. */
+  public long getDeletes() {
+    return deletes;
+  }
+
+  /** Returns number of entities returned by gets and queries. */
+  public long getEntitiesRead() {
+    long total = entitiesRead;
+    for (ReadCounter counter : readCounters) {
+      total += counter.entities;
+    }
+    return total;
+  }
+
+  /** Returns total number of Datastore calls. */
+  public long getCalls() {
+    return gets + queries + puts + deletes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("gets=%d, queries=%d, puts=%d, deletes=%d, entities read=%d",
+        gets, queries, puts, deletes, getEntitiesRead());
+  }
+
+  /** Number of entities read so far from the results of one query. */
+  static final class ReadCounter {
+    int entities;
+  }
+}
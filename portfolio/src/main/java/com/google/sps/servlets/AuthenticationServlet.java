@@ -23,7 +23,7 @@ import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
-import com.google.sps.data.DataUtil;
+import com.google.sps.data.DisplayNameLoader;
 import java.io.IOException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -48,7 +48,10 @@ public class AuthenticationServlet extends HttpServlet {
 
   private String createLogoutJson(UserService userService) {
     String id = userService.getCurrentUser().getUserId();
-    String displayName = DataUtil.getUserDisplayName(id);
+
+    DisplayNameLoader displayNameLoader = new DisplayNameLoader();
+    displayNameLoader.add(id);
+    String displayName = displayNameLoader.load().get(id);
     
     // Url that allows user to logout and redirects them back to homepage
     String logoutUrl = userService.createLogoutURL("/index.html");
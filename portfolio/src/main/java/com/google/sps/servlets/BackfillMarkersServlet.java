@@ -0,0 +1,122 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.sps.data.DataUtil;
+import com.google.sps.data.MarkerBackfill;
+import com.google.sps.data.MarkerClusterIndex;
+import com.google.sps.metrics.DatastoreMetrics;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Cron and task queue handler that gives markers saved before geohashes and
+ * versions were stored both of them, and counts them in their clusters. Cron starts
+ * the backfill until it has finished; each task reads one page of markers and
+ * queues the next page, so no single request runs long.
+ */
+@WebServlet(DataUtil.BACKFILL_MARKERS_URL)
+public class BackfillMarkersServlet extends HttpServlet {
+
+  // Markers read and written per task, the most Datastore puts in one batch
+  private static final int BATCH_SIZE = 500;
+
+  /** Starts the backfill from the first marker, unless it has already finished. */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // App Engine strips this header from external requests, so only cron has it
+    if (request.getHeader("X-Appengine-Cron") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    if (!MarkerBackfill.isDone()) {
+      backfillPage(null);
+    }
+  }
+
+  /**
+   * Continues the backfill from the page starting at the cursor parameter, or from
+   * the first marker if there is none.
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (request.getHeader("X-AppEngine-QueueName") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    String cursorParameter = request.getParameter("cursor");
+    Cursor cursor;
+    try {
+      cursor = cursorParameter == null ? null : Cursor.fromWebSafeString(cursorParameter);
+    } catch (IllegalArgumentException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid cursor");
+      return;
+    }
+    backfillPage(cursor);
+  }
+
+  /**
+   * Fills in the markers of the page starting at cursor, or at the first marker if
+   * cursor is null, then queues the next page or records that the backfill is done.
+   */
+  private void backfillPage(Cursor cursor) {
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(BATCH_SIZE).chunkSize(BATCH_SIZE);
+    if (cursor != null) {
+      fetchOptions.startCursor(cursor);
+    }
+    QueryResultList<Entity> markers =
+        datastore.prepare(new Query("MarkerDataEntity")).asQueryResultList(fetchOptions);
+
+    // The query may be stale, so markers it shows unfilled are read again before
+    // writing, and only those filled here are counted in their clusters
+    List<Entity> filled = new ArrayList<>();
+    for (Entity marker : markers) {
+      if (marker.hasProperty("geohash")) {
+        continue;
+      }
+      Entity filledMarker = MarkerBackfill.fillSaved(marker.getKey());
+      if (filledMarker != null) {
+        filled.add(filledMarker);
+      }
+    }
+    if (!filled.isEmpty()) {
+      MarkerClusterIndex.addAll(filled);
+    }
+
+    // A short page means there are no markers left
+    if (markers.size() < BATCH_SIZE) {
+      MarkerBackfill.markDone();
+      return;
+    }
+    QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(DataUtil.BACKFILL_MARKERS_URL)
+        .param("cursor", markers.getCursor().toWebSafeString()));
+  }
+}
@@ -14,25 +14,37 @@
 
 package com.google.sps.servlets;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 import com.google.sps.data.CommentData;
+import com.google.sps.data.CommentWriteBehindQueue;
+import com.google.sps.data.CommentsFeedCache;
 import com.google.sps.data.DataUtil;
+import com.google.sps.data.DisplayNameLoader;
+import com.google.sps.data.UserContent;
+import com.google.sps.metrics.DatastoreMetrics;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -43,6 +55,18 @@ import javax.servlet.http.HttpServletResponse;
 @WebServlet("/comments")
 public class CommentsServlet extends HttpServlet {
 
+  // Largest page the comments select offers, and so the largest page served
+  private static final int MAX_COMMENTS = 100;
+
+  @Override
+  public void destroy() {
+    // Save queued comments before the server stops, if the shutdown hook hasn't already
+    CommentWriteBehindQueue writeBehindQueue = DataUtil.getCommentWriteBehindQueue();
+    if (writeBehindQueue != null) {
+      writeBehindQueue.shutdown();
+    }
+  }
+
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
     UserService userService = UserServiceFactory.getUserService();
@@ -65,37 +89,178 @@ public class CommentsServlet extends HttpServlet {
     commentDataEntity.setProperty("content", comment);
     commentDataEntity.setProperty("utcDate", utcDate);
 
+    // Store author's name with comment so reading comments needs no UserInfo lookups
     String displayName = request.getParameter("Name");
-    
-    // Update user's displayName in DataStore
-    Entity userInfoEntity = new Entity("UserInfo", id);
-    userInfoEntity.setProperty("id", id);
-    userInfoEntity.setProperty("displayName", displayName); 
+    commentDataEntity.setUnindexedProperty("displayName", displayName);
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    datastore.put(commentDataEntity);
-    datastore.put(userInfoEntity);
+    // When comments are saved in groups, only queue the comment during the request
+    CommentWriteBehindQueue writeBehindQueue = DataUtil.getCommentWriteBehindQueue();
+    if (writeBehindQueue != null) {
+      if (!writeBehindQueue.offer(new UserContent(commentDataEntity, id, displayName))) {
+        response.setHeader("Retry-After", "1");
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many comments");
+      }
+      return;
+    }
 
+    // Save entity and update user's displayName in DataStore
+    DataUtil.putUserContent(commentDataEntity, id, displayName);
+    DataUtil.getCommentsFeedCache().bumpVersion();
   }
 
+  /**
+   * Responds with a JSON object containing up to max-comments comments, newest first,
+   * and a "next" cursor that can be passed back as the cursor parameter to get the
+   * following page. The cursor is omitted on the last page. The first page is served
+   * from a snapshot with an ETag while no comments have changed. max-comments must
+   * be between 1 and 100.
+   */
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {    
-    // Load all comments from datastore, sorted by time posted
+    int maxComments;
+    try {
+      maxComments = Integer.parseInt(request.getParameter("max-comments"));
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid max-comments");
+      return;
+    }
+    if (maxComments < 1 || maxComments > MAX_COMMENTS) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "max-comments must be between 1 and " + MAX_COMMENTS);
+      return;
+    }
+    String cursor = request.getParameter("cursor");
+
+    response.setContentType("application/json");
+
+    if (cursor == null || cursor.isEmpty()) {
+      serveFirstPage(request, response, maxComments);
+      return;
+    }
+
+    // Resume after the last comment of the previous page
+    Cursor startCursor;
+    try {
+      startCursor = Cursor.fromWebSafeString(cursor);
+    } catch (IllegalArgumentException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid cursor");
+      return;
+    }
+
+    writeCommentsPage(response.getWriter(), maxComments, startCursor,
+        Collections.<Entity>emptyList());
+  }
+
+  /**
+   * Serves the newest maxComments comments from the feed snapshot, or answers with
+   * 304 if the client already has it. The snapshot is rebuilt from Datastore when
+   * the feed has changed since it was taken.
+   */
+  private void serveFirstPage(HttpServletRequest request, HttpServletResponse response,
+      int maxComments) throws IOException {
+    // Authors see their own queued comments, so they can't be served a shared snapshot
+    List<Entity> pendingComments = getPendingComments();
+    if (!pendingComments.isEmpty()) {
+      writeCommentsPage(response.getWriter(), maxComments, null, pendingComments);
+      return;
+    }
+
+    CommentsFeedCache commentsFeed = DataUtil.getCommentsFeedCache();
+
+    // Read version before the query so a concurrent write can't be hidden by it
+    Long version = commentsFeed.getVersion();
+    if (version == null) {
+      writeCommentsPage(response.getWriter(), maxComments, null, pendingComments);
+      return;
+    }
+
+    CommentsFeedCache.Snapshot snapshot = commentsFeed.get(maxComments, version);
+    if (snapshot == null) {
+      StringWriter json = new StringWriter();
+      writeCommentsPage(json, maxComments, null, pendingComments);
+      snapshot = commentsFeed.put(maxComments, version, json.toString());
+    }
+
+    // Gzipped variant is compressed once per snapshot rather than once per response
+    boolean gzip = CompressionFilter.acceptsGzip(request);
+    String eTag = gzip ? snapshot.getGzipETag() : snapshot.getETag();
+
+    // Browser must revalidate, but can reuse its copy while the ETag matches
+    response.setHeader("Cache-Control", "no-cache");
+    response.setHeader("ETag", eTag);
+    if (eTag.equals(request.getHeader("If-None-Match"))) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    if (gzip) {
+      response.setCharacterEncoding("UTF-8");
+      response.setHeader("Content-Encoding", "gzip");
+      response.getOutputStream().write(snapshot.getGzip());
+      return;
+    }
+    response.getWriter().write(snapshot.getJson());
+  }
+
+  /**
+   * Returns comments by the current user that are queued to be saved, newest first,
+   * or an empty list if comments are saved directly.
+   */
+  private List<Entity> getPendingComments() {
+    CommentWriteBehindQueue writeBehindQueue = DataUtil.getCommentWriteBehindQueue();
+    UserService userService = UserServiceFactory.getUserService();
+    if (writeBehindQueue == null || !userService.isUserLoggedIn()) {
+      return Collections.emptyList();
+    }
+    return writeBehindQueue.getPending(userService.getCurrentUser().getUserId());
+  }
+
+  /**
+   * Writes page of up to maxComments comments starting at startCursor, or at the
+   * newest comment if startCursor is null, to out as JSON. Any pendingComments are
+   * written ahead of the comments read from Datastore.
+   */
+  private void writeCommentsPage(Writer out, int maxComments, Cursor startCursor,
+      List<Entity> pendingComments) throws IOException {
+    // Load comments from datastore, sorted by time posted
     Query query = new Query("CommentData").addSort("utcDate", SortDirection.DESCENDING);
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
     PreparedQuery results = datastore.prepare(query);
 
-    int maxComments = Integer.parseInt(request.getParameter("max-comments"));
+    // Fetch exactly one page of comments in a single batch
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(maxComments).chunkSize(maxComments);
+    if (startCursor != null) {
+      fetchOptions.startCursor(startCursor);
+    }
+
+    QueryResultList<Entity> storedEntities = results.asQueryResultList(fetchOptions);
 
-    // Create commentData object for each stored comment, up to maxComments, and store in list
-    int numComments = 0;
-    List<CommentData> commentsData = new ArrayList<>();
-    for (Entity entity : results.asIterable()) {
-      if (numComments == maxComments) {
-        break;
+    // A short page means there are no comments left
+    String next = storedEntities.size() < maxComments
+        ? null : storedEntities.getCursor().toWebSafeString();
+
+    List<Entity> entities = new ArrayList<>(pendingComments);
+    entities.addAll(storedEntities);
+
+    // Collect the ids of authors whose comments predate storing their name with them
+    DisplayNameLoader displayNameLoader = new DisplayNameLoader();
+    for (Entity entity : entities) {
+      if (!entity.hasProperty("displayName")) {
+        displayNameLoader.add((String) entity.getProperty("id"));
       }
+    }
+
+    // Fetch display names of those authors in one batch
+    Map<String, String> displayNames = displayNameLoader.load();
 
+    // Stream each comment to out as soon as it is created
+    Gson gson = new GsonBuilder().setDateFormat("M/dd/yyyy hh:mm a z").create();
+    JsonWriter writer = gson.newJsonWriter(out);
+
+    writer.beginObject();
+    writer.name("comments").beginArray();
+    for (Entity entity : entities) {
       String id = (String) entity.getProperty("id");
       String comment = (String) entity.getProperty("content");
       Date utcDate = (Date) entity.getProperty("utcDate");
@@ -103,20 +268,19 @@ public class CommentsServlet extends HttpServlet {
       // Create string representation of key for json storage
       String key = KeyFactory.keyToString(entity.getKey());
 
-      String displayName = DataUtil.getUserDisplayName(id);
+      String displayName = entity.hasProperty("displayName")
+          ? (String) entity.getProperty("displayName") : displayNames.get(id);
 
       CommentData commentData = new CommentData(key, id, displayName, comment, utcDate);
-      commentsData.add(commentData);
-
-      numComments++;
+      gson.toJson(commentData, CommentData.class, writer);
     }
+    writer.endArray();
 
-    // Create json string from list of commentData objects 
-    Gson gson = new GsonBuilder().setDateFormat("M/dd/yyyy hh:mm a z").create();
-    String json = gson.toJson(commentsData);
-
-    // Write json string to response 
-    response.setContentType("application/json");
-    response.getWriter().println(json);
+    // Last page has no cursor
+    if (next != null) {
+      writer.name("next").value(next);
+    }
+    writer.endObject();
+    writer.flush();
   }
 }
@@ -0,0 +1,195 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Gzips responses of the JSON endpoints for clients that accept it. Responses are
+ * compressed as they are streamed, unless the servlet already set a
+ * Content-Encoding, which servlets do when they write a variant they compressed
+ * ahead of time.
+ *
+ * <p>Only gzip is supported, as there is no pure Java brotli encoder.
+ */
+@WebFilter({"/comments", "/markers", "/translate"})
+public class CompressionFilter implements Filter {
+
+  // Favor speed over ratio, since these responses are compressed on every request.
+  // Bodies that are kept and sent many times are compressed harder, by Gzip.
+  private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+  /** Returns true if client that made request accepts gzip encoded responses. */
+  public static boolean acceptsGzip(HttpServletRequest request) {
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    return acceptEncoding != null && acceptEncoding.contains("gzip");
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) {}
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletResponse httpResponse = (HttpServletResponse) response;
+    httpResponse.addHeader("Vary", "Accept-Encoding");
+    if (!acceptsGzip((HttpServletRequest) request)) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    GzipResponse gzipResponse = new GzipResponse(httpResponse);
+    chain.doFilter(request, gzipResponse);
+    gzipResponse.finish();
+  }
+
+  @Override
+  public void destroy() {}
+
+  /** Response that is gzipped if it turns out to have a compressible body. */
+  private static class GzipResponse extends HttpServletResponseWrapper {
+
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+    private GZIPOutputStream gzip;
+
+    GzipResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (writer != null) {
+        throw new IllegalStateException("getWriter() has already been called");
+      }
+      return openOutputStream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        if (outputStream != null) {
+          throw new IllegalStateException("getOutputStream() has already been called");
+        }
+        writer = new PrintWriter(
+            new OutputStreamWriter(openOutputStream(), getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    // Compressed length isn't known until the body is written
+    @Override
+    public void setContentLength(int length) {}
+
+    @Override
+    public void setContentLengthLong(long length) {}
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      } else if (outputStream != null) {
+        outputStream.flush();
+      }
+      super.flushBuffer();
+    }
+
+    /** Writes out the rest of the compressed body, if any. */
+    void finish() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+      if (gzip != null) {
+        gzip.finish();
+      }
+    }
+
+    /**
+     * Returns stream the body is written to. Whether to compress is decided on the
+     * first call, once the servlet has set the status and headers.
+     */
+    private ServletOutputStream openOutputStream() throws IOException {
+      if (outputStream != null) {
+        return outputStream;
+      }
+
+      ServletOutputStream out = super.getOutputStream();
+      if (!isCompressible()) {
+        outputStream = out;
+        return outputStream;
+      }
+
+      setHeader("Content-Encoding", "gzip");
+      gzip = new GZIPOutputStream(out, true) {
+        {
+          def.setLevel(COMPRESSION_LEVEL);
+        }
+      };
+      outputStream = new ServletOutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          gzip.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+          gzip.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          gzip.flush();
+        }
+
+        @Override
+        public boolean isReady() {
+          return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+          out.setWriteListener(listener);
+        }
+      };
+      return outputStream;
+    }
+
+    private boolean isCompressible() {
+      if (containsHeader("Content-Encoding") || getStatus() == SC_NO_CONTENT
+          || getStatus() == SC_NOT_MODIFIED) {
+        return false;
+      }
+      String contentType = getContentType();
+      return contentType != null && (contentType.startsWith("application/")
+          || contentType.startsWith("text/"));
+    }
+  }
+}
@@ -15,24 +15,74 @@
 package com.google.sps.servlets;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.sps.data.DataUtil;
+import com.google.sps.data.MarkerChanges;
+import com.google.sps.data.MarkerClusterIndex;
+import com.google.sps.metrics.DatastoreMetrics;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-/** Servlet that deletes an entity given its Datastore key. */
+/**
+ * Servlet that deletes entities given their Datastore keys, passed as one or more
+ * key parameters and deleted in one batch.
+ */
 @WebServlet("/delete-data")
 public class DeleteDataServlet extends HttpServlet {
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    String[] keyStrings = request.getParameterValues("key");
+    if (keyStrings == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No key given");
+      return;
+    }
 
-    String keyString = request.getParameter("key");
-    datastore.delete(KeyFactory.stringToKey(keyString));
+    List<Key> keys = new ArrayList<>();
+    List<Key> markerKeys = new ArrayList<>();
+    boolean deletesComment = false;
+    for (String keyString : keyStrings) {
+      Key key = KeyFactory.stringToKey(keyString);
+      keys.add(key);
+      if (key.getKind().equals("CommentData")) {
+        deletesComment = true;
+      } else if (key.getKind().equals("MarkerDataEntity")) {
+        markerKeys.add(key);
+      }
+    }
+
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+
+    // Markers are read before deleting them to know which clusters they are in.
+    // Markers that are already deleted had their clusters updated then.
+    Map<Key, Entity> markers = markerKeys.isEmpty()
+        ? Collections.<Key, Entity>emptyMap() : datastore.get(markerKeys);
+
+    datastore.delete(keys);
+    if (deletesComment) {
+      DataUtil.getCommentsFeedCache().bumpVersion();
+    }
+
+    if (!markerKeys.isEmpty()) {
+      // Let clients syncing changes know the markers are gone
+      List<Entity> tombstones = new ArrayList<>();
+      for (Key key : markerKeys) {
+        tombstones.add(MarkerChanges.createTombstone(key));
+      }
+      datastore.put(tombstones);
+
+      for (Entity marker : markers.values()) {
+        MarkerClusterIndex.remove(marker);
+      }
+    }
   }
 }
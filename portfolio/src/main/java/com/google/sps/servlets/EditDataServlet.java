@@ -15,32 +15,123 @@
 package com.google.sps.servlets;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.sps.data.DataUtil;
+import com.google.sps.data.MarkerBackfill;
+import com.google.sps.data.MarkerChanges;
+import com.google.sps.data.MarkerClusterIndex;
+import com.google.sps.metrics.DatastoreMetrics;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-/** Servlet that updates an entity given its Datastore key. */
+/**
+ * Servlet that updates the content of entities given their Datastore keys. Each key
+ * parameter is paired with the content parameter in the same position. Markers are
+ * each updated in a transaction, and other entities are read and written in one
+ * batch each.
+ */
 @WebServlet("/edit-data")
 public class EditDataServlet extends HttpServlet {
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    String[] keyStrings = request.getParameterValues("key");
+    String[] contents = request.getParameterValues("content");
+    if (keyStrings == null || contents == null || keyStrings.length != contents.length) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Each key needs a content");
+      return;
+    }
+
+    List<Key> keys = new ArrayList<>();
+    for (String keyString : keyStrings) {
+      keys.add(KeyFactory.stringToKey(keyString));
+    }
+
+    // Markers are edited in a transaction each, so an edit and the backfill can't
+    // both fill in the same marker and count it twice
+    List<Key> otherKeys = new ArrayList<>();
+    List<String> otherContents = new ArrayList<>();
+    List<Entity> editedMarkers = new ArrayList<>();
+    List<Entity> filledMarkers = new ArrayList<>();
+    for (int i = 0; i < keys.size(); i++) {
+      if (keys.get(i).getKind().equals("MarkerDataEntity")) {
+        editMarker(keys.get(i), contents[i], editedMarkers, filledMarkers);
+      } else {
+        otherKeys.add(keys.get(i));
+        otherContents.add(contents[i]);
+      }
+    }
+
+    boolean editedComment = false;
+    if (!otherKeys.isEmpty()) {
+      DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+      Map<Key, Entity> entities = datastore.get(otherKeys);
+      if (entities.size() != new HashSet<>(otherKeys).size()) {
+        throw new RuntimeException("Entity not found");
+      }
+      for (int i = 0; i < otherKeys.size(); i++) {
+        Entity entity = entities.get(otherKeys.get(i));
+        entity.setProperty("content", otherContents.get(i));
+        editedComment |= entity.getKind().equals("CommentData");
+      }
+      datastore.put(entities.values());
+    }
 
-    Key key = KeyFactory.stringToKey(request.getParameter("key"));
+    if (editedComment) {
+      DataUtil.getCommentsFeedCache().bumpVersion();
+    }
+    for (Entity marker : editedMarkers) {
+      MarkerClusterIndex.updateContent(marker);
+    }
+    if (!filledMarkers.isEmpty()) {
+      MarkerClusterIndex.addAll(filledMarkers);
+    }
+  }
+
+  /**
+   * Sets content of the marker with key in a transaction, and adds the marker to
+   * filledMarkers if this edit gave it a geohash and to editedMarkers otherwise.
+   */
+  private void editMarker(Key key, String content, List<Entity> editedMarkers,
+      List<Entity> filledMarkers) {
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+    Transaction transaction = datastore.beginTransaction();
     try {
-      Entity entity = datastore.get(key);
-      entity.setProperty("content", request.getParameter("content"));
-      datastore.put(entity);
-    } catch (EntityNotFoundException e) {
-      throw new RuntimeException("Entity not found");
+      Entity marker;
+      try {
+        marker = datastore.get(transaction, key);
+      } catch (EntityNotFoundException e) {
+        throw new RuntimeException("Entity not found", e);
+      }
+      marker.setProperty("content", content);
+
+      // Markers saved before geohashes were stored get one, and join their clusters
+      boolean filled = MarkerBackfill.fill(marker);
+      if (!filled) {
+        marker.setProperty("version", MarkerChanges.nextVersion());
+      }
+      datastore.put(transaction, marker);
+      transaction.commit();
+      if (filled) {
+        filledMarkers.add(marker);
+      } else {
+        editedMarkers.add(marker);
+      }
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
     }
   }
 }
@@ -0,0 +1,444 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import com.google.sps.data.DataUtil;
+import com.google.sps.data.Geohash;
+import com.google.sps.data.MarkerChanges;
+import com.google.sps.data.MarkerClusterIndex;
+import com.google.sps.data.UserContent;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.jsoup.Jsoup;
+import org.jsoup.safety.Whitelist;
+
+/**
+ * Servlet that adds many markers at once from a CSV or NDJSON upload.
+ *
+ * <p>CSV rows hold lat, lng and content, optionally under a header row naming the
+ * columns. NDJSON lines are objects with lat, lng and content properties. The body
+ * is read row by row and markers are saved in batches, so only one batch is held in
+ * memory. Progress is streamed back as NDJSON: an {"imported":n} line after each
+ * batch, a {"row":n,"error":...} line for each row that can't be imported, and a
+ * final {"imported":n,"failed":n,"done":true} line.
+ */
+@WebServlet("/markers/import")
+public class ImportMarkersServlet extends HttpServlet {
+
+  private static final Logger logger = Logger.getLogger(ImportMarkersServlet.class.getName());
+
+  // Datastore puts at most 500 entities at a time, one of which may be UserInfo
+  private static final int BATCH_SIZE = 499;
+
+  // Longest row read, far more than a marker needs, so that a quoted field left open
+  // can't hold the rest of the upload in memory
+  private static final int MAX_ROW_LENGTH = 10000;
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+
+    // User can only add markers if they are logged in
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/index.html");
+      return;
+    }
+
+    String id = userService.getCurrentUser().getUserId();
+    String displayName = request.getParameter("name");
+    if (displayName == null) {
+      displayName = DataUtil.getUserDisplayName(id);
+    }
+
+    String contentType = request.getContentType();
+    RowReader rows = contentType != null && contentType.contains("json")
+        ? new NdjsonRowReader(request.getReader())
+        : new CsvRowReader(request.getReader());
+
+    response.setContentType("application/x-ndjson");
+    response.setCharacterEncoding("UTF-8");
+    PrintWriter progress = response.getWriter();
+
+    List<UserContent> batch = new ArrayList<>();
+    int imported = 0;
+    int failed = 0;
+    while (true) {
+      Entity markerEntity;
+      try {
+        markerEntity = rows.next();
+      } catch (IllegalArgumentException e) {
+        writeRowError(progress, rows.getRowNumber(), e.getMessage());
+        failed++;
+        continue;
+      }
+
+      if (markerEntity != null) {
+        markerEntity.setProperty("id", id);
+        markerEntity.setUnindexedProperty("displayName", displayName);
+        batch.add(new UserContent(markerEntity, id, displayName));
+      }
+
+      if (batch.size() == BATCH_SIZE || (markerEntity == null && !batch.isEmpty())) {
+        try {
+          saveBatch(batch);
+        } catch (RuntimeException e) {
+          // Rows already saved stay saved, so report how far the import got
+          logger.log(Level.WARNING, "Failed to import " + batch.size() + " markers", e);
+          writeSummary(progress, imported, failed + batch.size(), "Failed to save markers");
+          return;
+        }
+        imported += batch.size();
+        batch.clear();
+
+        writeProgressLine(progress, "imported", imported);
+        response.flushBuffer();
+      }
+
+      if (markerEntity == null) {
+        break;
+      }
+    }
+
+    writeSummary(progress, imported, failed, null);
+  }
+
+  /**
+   * Saves markers in batch with one put and counts them in their clusters. Failing to
+   * count them is only logged, as the markers are saved by then.
+   */
+  private void saveBatch(List<UserContent> batch) {
+    // Versioned just before saving so syncing clients can't miss a slow batch
+    for (UserContent content : batch) {
+      content.getEntity().setProperty("version", MarkerChanges.nextVersion());
+    }
+
+    // UserInfo is only rewritten if the display name changed, so at most once per import
+    DataUtil.putUserContent(batch);
+
+    List<Entity> markers = new ArrayList<>();
+    for (UserContent content : batch) {
+      markers.add(content.getEntity());
+    }
+    try {
+      MarkerClusterIndex.addAll(markers);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to cluster " + markers.size() + " imported markers", e);
+    }
+  }
+
+  private void writeProgressLine(Writer out, String name, int value) throws IOException {
+    JsonWriter writer = new JsonWriter(out);
+    writer.beginObject().name(name).value(value).endObject();
+    writer.flush();
+    out.write('\n');
+  }
+
+  private void writeRowError(Writer out, int row, String error) throws IOException {
+    JsonWriter writer = new JsonWriter(out);
+    writer.beginObject().name("row").value(row).name("error").value(error).endObject();
+    writer.flush();
+    out.write('\n');
+  }
+
+  private void writeSummary(Writer out, int imported, int failed, String error)
+      throws IOException {
+    JsonWriter writer = new JsonWriter(out);
+    writer.beginObject().name("imported").value(imported).name("failed").value(failed);
+    if (error != null) {
+      writer.name("error").value(error);
+    }
+    writer.name("done").value(true).endObject();
+    writer.flush();
+    out.write('\n');
+  }
+
+  /**
+   * Returns marker entity at lat, lng with content cleaned of HTML.
+   * @throws IllegalArgumentException if lat or lng is malformed or out of range
+   */
+  private static Entity createMarkerEntity(String lat, String lng, String content) {
+    double latValue = parseCoordinate("lat", lat, 90);
+    double lngValue = parseCoordinate("lng", lng, 180);
+    if (content == null) {
+      throw new IllegalArgumentException("Missing content");
+    }
+
+    Entity markerEntity = new Entity("MarkerDataEntity");
+    markerEntity.setProperty("lat", latValue);
+    markerEntity.setProperty("lng", lngValue);
+    markerEntity.setProperty("content", Jsoup.clean(content, Whitelist.none()));
+
+    // Index position by geohash so markers can be read by viewport
+    markerEntity.setProperty("geohash", Geohash.encode(latValue, lngValue, Geohash.PRECISION));
+    return markerEntity;
+  }
+
+  private static double parseCoordinate(String name, String value, double limit) {
+    if (value == null) {
+      throw new IllegalArgumentException("Missing " + name);
+    }
+
+    double coordinate;
+    try {
+      coordinate = Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Malformed " + name);
+    }
+    if (!(coordinate >= -limit && coordinate <= limit)) {
+      throw new IllegalArgumentException(name + " out of range");
+    }
+    return coordinate;
+  }
+
+  /**
+   * Returns the next line of reader without its line break, or null at the end of
+   * the body. A line longer than maxLength is read to its end and dropped.
+   * @throws IllegalArgumentException if the line is longer than maxLength
+   */
+  private static String readLine(BufferedReader reader, int maxLength) throws IOException {
+    StringBuilder line = new StringBuilder();
+    boolean tooLong = false;
+    int c = reader.read();
+    if (c == -1) {
+      return null;
+    }
+    while (c != -1 && c != '\n' && c != '\r') {
+      if (line.length() >= maxLength) {
+        tooLong = true;
+      } else {
+        line.append((char) c);
+      }
+      c = reader.read();
+    }
+
+    // Line breaks may be \n, \r\n or \r, as for BufferedReader.readLine
+    if (c == '\r') {
+      reader.mark(1);
+      if (reader.read() != '\n') {
+        reader.reset();
+      }
+    }
+
+    if (tooLong) {
+      throw new IllegalArgumentException("Row longer than " + MAX_ROW_LENGTH + " characters");
+    }
+    return line.toString();
+  }
+
+  /** Reads markers from a request body one row at a time. */
+  private interface RowReader {
+    /**
+     * Returns marker entity for the next row, or null at the end of the body.
+     * @throws IllegalArgumentException if the row can't be imported
+     */
+    Entity next() throws IOException;
+
+    /** Returns 1-based number of the row last read. */
+    int getRowNumber();
+  }
+
+  /** Reads one JSON object per line, skipping blank lines. */
+  private static final class NdjsonRowReader implements RowReader {
+    private final BufferedReader reader;
+    private int rowNumber;
+
+    private NdjsonRowReader(BufferedReader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    public Entity next() throws IOException {
+      String line;
+      do {
+        rowNumber++;
+        line = readLine(reader, MAX_ROW_LENGTH);
+        if (line == null) {
+          return null;
+        }
+      } while (line.trim().isEmpty());
+
+      JsonObject row;
+      try {
+        JsonElement element = JsonParser.parseString(line);
+        if (!element.isJsonObject()) {
+          throw new IllegalArgumentException("Row is not an object");
+        }
+        row = element.getAsJsonObject();
+      } catch (JsonParseException e) {
+        throw new IllegalArgumentException("Malformed JSON");
+      }
+      return createMarkerEntity(getString(row, "lat"), getString(row, "lng"),
+          getString(row, "content"));
+    }
+
+    @Override
+    public int getRowNumber() {
+      return rowNumber;
+    }
+
+    private static String getString(JsonObject row, String name) {
+      JsonElement value = row.get(name);
+      return value == null || !value.isJsonPrimitive() ? null : value.getAsString();
+    }
+  }
+
+  /**
+   * Reads comma separated rows, where fields may be quoted with " and a quoted field
+   * may contain commas, doubled quotes and line breaks. A first non-blank row that
+   * names the lat, lng and content columns sets which column holds each.
+   */
+  static final class CsvRowReader implements RowReader {
+    private final BufferedReader reader;
+    private int rowNumber;
+    private boolean headerChecked;
+    private int latColumn = 0;
+    private int lngColumn = 1;
+    private int contentColumn = 2;
+
+    CsvRowReader(BufferedReader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    public Entity next() throws IOException {
+      List<String> fields;
+      do {
+        fields = readRecord();
+        if (fields == null) {
+          return null;
+        }
+      } while (fields.size() == 1 && fields.get(0).trim().isEmpty());
+
+      if (!headerChecked) {
+        headerChecked = true;
+        List<String> names = new ArrayList<>();
+        for (String field : fields) {
+          names.add(field.trim().toLowerCase());
+        }
+        if (names.contains("lat") && names.contains("lng") && names.contains("content")) {
+          latColumn = names.indexOf("lat");
+          lngColumn = names.indexOf("lng");
+          contentColumn = names.indexOf("content");
+          return next();
+        }
+      }
+
+      return createMarkerEntity(getField(fields, latColumn), getField(fields, lngColumn),
+          getField(fields, contentColumn));
+    }
+
+    @Override
+    public int getRowNumber() {
+      return rowNumber;
+    }
+
+    private static String getField(List<String> fields, int column) {
+      return column < fields.size() ? fields.get(column) : null;
+    }
+
+    /**
+     * Returns fields of the next record, or null at the end of the body. Line breaks
+     * in a quoted field are read as \n.
+     * @throws IllegalArgumentException if the record is longer than MAX_ROW_LENGTH
+     */
+    private List<String> readRecord() throws IOException {
+      rowNumber++;
+      int c = reader.read();
+      if (c == -1) {
+        return null;
+      }
+
+      // A record over the limit is still read to its end, minding quotes, so that a
+      // line break inside a quoted field isn't taken for the start of the next record
+      List<String> fields = new ArrayList<>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      int length = 0;
+      while (c != -1 && (quoted || (c != '\n' && c != '\r'))) {
+        length++;
+        if (quoted) {
+          if (c == '"') {
+            c = reader.read();
+            if (c != '"') {
+              // Closing quote, so the character after it is read as unquoted
+              quoted = false;
+              continue;
+            }
+            length++;
+            append(field, '"', length);
+          } else if (c == '\r') {
+            skipLineFeed();
+            append(field, '\n', length);
+          } else {
+            append(field, (char) c, length);
+          }
+        } else if (c == '"') {
+          quoted = true;
+        } else if (c == ',') {
+          fields.add(field.toString());
+          field.setLength(0);
+        } else {
+          append(field, (char) c, length);
+        }
+        c = reader.read();
+      }
+      if (c == '\r') {
+        skipLineFeed();
+      }
+
+      if (length > MAX_ROW_LENGTH) {
+        throw new IllegalArgumentException("Row longer than " + MAX_ROW_LENGTH + " characters");
+      }
+      if (quoted) {
+        throw new IllegalArgumentException("Unterminated quoted field");
+      }
+      fields.add(field.toString());
+      return fields;
+    }
+
+    /** Appends c to field unless the record is already longer than MAX_ROW_LENGTH. */
+    private static void append(StringBuilder field, char c, int length) {
+      if (length <= MAX_ROW_LENGTH) {
+        field.append(c);
+      }
+    }
+
+    /** Skips the \n of a \r\n line break, as BufferedReader.readLine does. */
+    private void skipLineFeed() throws IOException {
+      reader.mark(1);
+      if (reader.read() != '\n') {
+        reader.reset();
+      }
+    }
+  }
+}
@@ -15,20 +15,41 @@
 package com.google.sps.servlets;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.google.sps.data.DataUtil;
+import com.google.sps.data.DisplayNameLoader;
+import com.google.sps.data.Geohash;
+import com.google.sps.data.MarkerBackfill;
+import com.google.sps.data.MarkerChanges;
+import com.google.sps.data.MarkerCluster;
+import com.google.sps.data.MarkerClusterIndex;
+import com.google.sps.data.MarkerColumnsWriter;
 import com.google.sps.data.MarkerData;
+import com.google.sps.data.MarkerSnapshot;
+import com.google.sps.data.Viewport;
+import com.google.sps.metrics.DatastoreMetrics;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -40,16 +61,118 @@ import org.jsoup.safety.Whitelist;
 @WebServlet("/markers")
 public class MarkersServlet extends HttpServlet {
 
-  /** Responds with a JSON array containing marker data. */
+  // Number of markers read from Datastore and written to the response at a time
+  private static final int MARKER_BATCH_SIZE = 500;
+
+  // Most geohash cells, and so queries, a viewport is read with
+  private static final int MAX_VIEWPORT_CELLS = 8;
+
+  /**
+   * Responds with a JSON array containing marker data. If north, south, east and
+   * west bounds are given, only markers inside them are included. If a map zoom is
+   * given, responds with a JSON object instead, holding either the marker clusters
+   * to show at that zoom under "clusters", or the markers under "markers" when the
+   * map is zoomed in far enough to show them individually, along with the "version"
+   * they are current as of. Given that version as since, responds with only the
+   * markers changed after it under "markers", the keys of markers deleted after it
+   * under "deleted", and the version to pass as since next time. A since older than
+   * MarkerChanges.MAX_SYNC_AGE_MILLIS gets 410, as deletions that old are forgotten.
+   *
+   * <p>Clients that accept MarkerColumnsWriter.CONTENT_TYPE get markers, deleted
+   * keys and version in that format instead. Clusters are always sent as JSON.
+   */
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    Viewport viewport;
+    try {
+      viewport = getViewport(request);
+    } catch (IllegalArgumentException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid viewport bounds");
+      return;
+    }
+
+    String zoomParameter = request.getParameter("zoom");
+    String sinceParameter = request.getParameter("since");
+    int clusterPrecision = 0;
+    long since = 0;
+    try {
+      if (zoomParameter != null) {
+        clusterPrecision = MarkerClusterIndex.getPrecision(Integer.parseInt(zoomParameter));
+      }
+      if (sinceParameter != null) {
+        since = Long.parseLong(sinceParameter);
+      }
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid zoom or version");
+      return;
+    }
+
+    response.addHeader("Vary", "Accept");
+
+    // Tombstones older than since may be gone, so the client has to read all markers
+    if (sinceParameter != null && !MarkerChanges.canSyncFrom(since)) {
+      response.sendError(HttpServletResponse.SC_GONE, "Version too old, read all markers");
+      return;
+    }
+
+    // Markers are served from memory when this instance keeps a snapshot of them
+    MarkerSnapshot markerSnapshot = DataUtil.getMarkerSnapshot();
+    if (markerSnapshot != null && sinceParameter == null && clusterPrecision == 0) {
+      writeSnapshot(request, response, markerSnapshot.get(), viewport, zoomParameter != null);
+      return;
+    }
+
+    // Version is taken before reading so no change made meanwhile can be skipped
+    long version = sinceParameter != null || zoomParameter != null
+        ? MarkerChanges.getSyncedVersion(since) : 0;
+    List<Query> queries = sinceParameter != null
+        ? Collections.singletonList(MarkerChanges.createChangedQuery("MarkerDataEntity", since))
+        : createMarkersQueries(viewport);
+
+    // Markers saved before geohashes were stored are missing from viewports until the
+    // backfill gives them one, so it is started as soon as that is noticed
+    if (!MarkerBackfill.isDone()) {
+      MarkerBackfill.start();
+    }
+
+    if (clusterPrecision == 0 && acceptsColumns(request)) {
+      response.setContentType(MarkerColumnsWriter.CONTENT_TYPE);
+
+      MarkerColumnsWriter columns = new MarkerColumnsWriter(response.getOutputStream());
+      writeMarkersData(queries, viewport, columns::writeBlock);
+      List<String> deletedKeys = sinceParameter != null
+          ? getDeletedKeys(since) : Collections.<String>emptyList();
+      columns.finish(deletedKeys, version);
+      return;
+    }
+
     response.setContentType("application/json");
 
-    Collection<MarkerData> markersData = getMarkersData();
     Gson gson = new Gson();
-    String json = gson.toJson(markersData);
-
-    response.getWriter().println(json);
+    JsonWriter writer = gson.newJsonWriter(response.getWriter());
+    if (sinceParameter != null) {
+      writer.beginObject().name("markers");
+      writeMarkersJson(gson, writer, queries, viewport);
+      writer.name("deleted").beginArray();
+      for (String key : getDeletedKeys(since)) {
+        writer.value(key);
+      }
+      writer.endArray();
+      writer.name("version").value(version);
+      writer.endObject();
+    } else if (zoomParameter == null) {
+      writeMarkersJson(gson, writer, queries, viewport);
+    } else if (clusterPrecision > 0) {
+      writer.beginObject().name("clusters");
+      writeClusters(gson, writer, viewport, clusterPrecision);
+      writer.endObject();
+    } else {
+      writer.beginObject().name("markers");
+      writeMarkersJson(gson, writer, queries, viewport);
+      writer.name("version").value(version);
+      writer.endObject();
+    }
+    writer.flush();
   }
 
   /** Accepts a POST request containing a new marker. */
@@ -65,12 +188,7 @@ public class MarkersServlet extends HttpServlet {
 
     String id = userService.getCurrentUser().getUserId();
     String displayName = request.getParameter("name");
-    
-    // Update user's displayName in DataStore
-    Entity userInfoEntity = new Entity("UserInfo", id);
-    userInfoEntity.setProperty("id", id);
-    userInfoEntity.setProperty("displayName", displayName); 
-    
+
     double lat = Double.parseDouble(request.getParameter("lat"));
     double lng = Double.parseDouble(request.getParameter("lng"));   
     String content = Jsoup.clean(request.getParameter("content"), Whitelist.none());
@@ -82,38 +200,315 @@ public class MarkersServlet extends HttpServlet {
     markerEntity.setProperty("id", id);
     markerEntity.setProperty("content", content);
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    datastore.put(markerEntity);
-    datastore.put(userInfoEntity);
+    // Index position by geohash so markers can be read by viewport
+    markerEntity.setProperty("geohash", Geohash.encode(lat, lng, Geohash.PRECISION));
+    markerEntity.setProperty("version", MarkerChanges.nextVersion());
+
+    // Store name with marker so reading markers needs no UserInfo lookups
+    markerEntity.setUnindexedProperty("displayName", displayName);
+
+    // Save entity and update user's displayName in DataStore
+    DataUtil.putUserContent(markerEntity, id, displayName);
+    MarkerClusterIndex.add(markerEntity);
+  }
+
+  /**
+   * Returns viewport given by the north, south, east and west parameters, or null
+   * if none are given.
+   * @throws IllegalArgumentException if bounds are missing, malformed or out of range
+   */
+  private Viewport getViewport(HttpServletRequest request) {
+    String north = request.getParameter("north");
+    String south = request.getParameter("south");
+    String east = request.getParameter("east");
+    String west = request.getParameter("west");
+    if (north == null && south == null && east == null && west == null) {
+      return null;
+    }
+    if (north == null || south == null || east == null || west == null) {
+      throw new IllegalArgumentException("All four bounds are required");
+    }
+    return new Viewport(Double.parseDouble(north), Double.parseDouble(south),
+        Double.parseDouble(east), Double.parseDouble(west));
+  }
+
+  /** Returns true if client asked for markers in the MarkerColumnsWriter format. */
+  private boolean acceptsColumns(HttpServletRequest request) {
+    String accept = request.getHeader("Accept");
+    return accept != null && accept.contains(MarkerColumnsWriter.CONTENT_TYPE);
+  }
+
+  /**
+   * Writes markers of columns inside viewport, or all of them if viewport is null,
+   * to response. Markers are written straight from the columns, in the columnar
+   * format if the client accepts it and as JSON otherwise, with their version if
+   * withVersion is true.
+   */
+  private void writeSnapshot(HttpServletRequest request, HttpServletResponse response,
+      MarkerSnapshot.Columns columns, Viewport viewport, boolean withVersion)
+      throws IOException {
+    boolean columnsFormat = acceptsColumns(request);
+    response.setContentType(columnsFormat ? MarkerColumnsWriter.CONTENT_TYPE : "application/json");
+
+    // Every marker is sent alike until the next version, or until the markers change
+    // if the body leaves out the version, so that body is compressed once
+    if (viewport == null && CompressionFilter.acceptsGzip(request)) {
+      String variant = (columnsFormat ? "columns" : "json") + (withVersion ? "+version" : "");
+      boolean includesVersion = columnsFormat || withVersion;
+      int[] selected = columns.select(null);
+      byte[] gzip = columns.getGzip(variant, includesVersion, out -> {
+        if (columnsFormat) {
+          writeSnapshotColumns(out, columns, selected);
+        } else {
+          Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+          writeSnapshotJson(writer, columns, selected, withVersion);
+          writer.flush();
+        }
+      });
+      if (!columnsFormat) {
+        response.setCharacterEncoding("UTF-8");
+      }
+      response.setHeader("Content-Encoding", "gzip");
+      response.getOutputStream().write(gzip);
+      return;
+    }
+
+    int[] selected = columns.select(viewport);
+    if (columnsFormat) {
+      writeSnapshotColumns(response.getOutputStream(), columns, selected);
+    } else {
+      writeSnapshotJson(response.getWriter(), columns, selected, withVersion);
+    }
+  }
+
+  /** Writes markers of columns at selected indexes to out in the columnar format. */
+  private void writeSnapshotColumns(OutputStream out, MarkerSnapshot.Columns columns,
+      int[] selected) throws IOException {
+    MarkerColumnsWriter columnsWriter = new MarkerColumnsWriter(out);
+    for (int start = 0; start < selected.length; start += MARKER_BATCH_SIZE) {
+      columnsWriter.writeBlock(
+          columns, selected, start, Math.min(start + MARKER_BATCH_SIZE, selected.length));
+    }
+    columnsWriter.finish(Collections.<String>emptyList(), columns.getVersion());
+  }
+
+  /**
+   * Writes markers of columns at selected indexes to out as JSON, with their version
+   * if withVersion is true.
+   */
+  private void writeSnapshotJson(Writer out, MarkerSnapshot.Columns columns, int[] selected,
+      boolean withVersion) throws IOException {
+    // Same fields as MarkerData, without creating one per marker
+    JsonWriter writer = new Gson().newJsonWriter(out);
+    if (withVersion) {
+      writer.beginObject().name("markers");
+    }
+    writer.beginArray();
+    for (int index : selected) {
+      writer.beginObject();
+      writer.name("key").value(columns.getKey(index));
+      writer.name("id").value(columns.getId(index));
+      writer.name("displayName").value(columns.getDisplayName(index));
+      writer.name("lat").value(columns.getLat(index));
+      writer.name("lng").value(columns.getLng(index));
+      writer.name("content").value(columns.getContent(index));
+      writer.endObject();
+    }
+    writer.endArray();
+    if (withVersion) {
+      writer.name("version").value(columns.getVersion());
+      writer.endObject();
+    }
+    writer.flush();
+  }
+
+  /** Returns keys of markers deleted after version since, oldest first. */
+  private List<String> getDeletedKeys(long since) {
+    // Deleted markers are reported wherever they were, as clients may still show them
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+    Query query =
+        MarkerChanges.createChangedQuery(MarkerChanges.TOMBSTONE_KIND, since).setKeysOnly();
+
+    List<String> keys = new ArrayList<>();
+    for (Entity tombstone : datastore.prepare(query)
+        .asIterable(FetchOptions.Builder.withChunkSize(MARKER_BATCH_SIZE))) {
+      keys.add(tombstone.getKey().getName());
+    }
+    return keys;
+  }
+
+  /** Streams markers read by queries that are inside viewport to writer as a JSON array. */
+  private void writeMarkersJson(Gson gson, JsonWriter writer, List<Query> queries,
+      Viewport viewport) throws IOException {
+    writer.beginArray();
+    writeMarkersData(queries, viewport, batch -> {
+      for (MarkerData markerData : batch) {
+        gson.toJson(markerData, MarkerData.class, writer);
+      }
+    });
+    writer.endArray();
+  }
+
+  /**
+   * Passes markers read by queries that are inside viewport, or all of them if
+   * viewport is null, to batchWriter. Markers are read and written in batches so
+   * that memory use doesn't grow with the number of markers and display names
+   * missing from older markers are still fetched once per batch rather than once
+   * per marker.
+   */
+  private void writeMarkersData(List<Query> queries, Viewport viewport,
+      MarkerBatchWriter batchWriter) throws IOException {
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+
+    List<Entity> batch = new ArrayList<>(MARKER_BATCH_SIZE);
+    for (Query query : queries) {
+      // Cell queries project only the geohash, so that markers in the parts of the
+      // cells outside the viewport are never read in full
+      boolean projected = !query.getProjections().isEmpty();
+      List<Key> keys = new ArrayList<>(MARKER_BATCH_SIZE);
+
+      PreparedQuery results = datastore.prepare(query);
+      for (Entity entity
+          : results.asIterable(FetchOptions.Builder.withChunkSize(MARKER_BATCH_SIZE))) {
+        if (projected) {
+          if (viewport.overlaps((String) entity.getProperty("geohash"))) {
+            keys.add(entity.getKey());
+          }
+          if (keys.size() == MARKER_BATCH_SIZE) {
+            addInViewport(batch, getAll(datastore, keys), viewport, batchWriter);
+            keys.clear();
+          }
+          continue;
+        }
+        addInViewport(batch, Collections.singletonList(entity), viewport, batchWriter);
+      }
+      if (!keys.isEmpty()) {
+        addInViewport(batch, getAll(datastore, keys), viewport, batchWriter);
+      }
+    }
+    if (!batch.isEmpty()) {
+      batchWriter.write(createMarkersBatch(batch));
+    }
   }
 
-  /** Fetches markers from Datastore. */
-  private Collection<MarkerData> getMarkersData() {
-    Collection<MarkerData> markersData = new ArrayList<>();
+  /**
+   * Adds markers inside viewport, or all of them if viewport is null, to batch, and
+   * passes batch to batchWriter whenever it is full.
+   */
+  private void addInViewport(List<Entity> batch, List<Entity> markers, Viewport viewport,
+      MarkerBatchWriter batchWriter) throws IOException {
+    for (Entity entity : markers) {
+      // Covering cells reach past the viewport, so drop markers just outside it
+      if (viewport != null && !viewport.contains(
+          (double) entity.getProperty("lat"), (double) entity.getProperty("lng"))) {
+        continue;
+      }
+
+      batch.add(entity);
+      if (batch.size() == MARKER_BATCH_SIZE) {
+        batchWriter.write(createMarkersBatch(batch));
+        batch.clear();
+      }
+    }
+  }
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    Query query = new Query("MarkerDataEntity");
-    PreparedQuery results = datastore.prepare(query);
+  /** Returns markers with keys in the order of keys, leaving out those since deleted. */
+  private List<Entity> getAll(DatastoreService datastore, List<Key> keys) {
+    Map<Key, Entity> entities = datastore.get(keys);
+    List<Entity> markers = new ArrayList<>(entities.size());
+    for (Key key : keys) {
+      Entity entity = entities.get(key);
+      if (entity != null) {
+        markers.add(entity);
+      }
+    }
+    return markers;
+  }
 
-    for (Entity entity : results.asIterable()) {
-      markersData.add(createMarkerData(entity));
+  /**
+   * Returns queries reading the geohash cells that cover viewport, projected to the
+   * geohash, or a query for all markers if viewport is null.
+   */
+  private List<Query> createMarkersQueries(Viewport viewport) {
+    if (viewport == null) {
+      return Collections.singletonList(new Query("MarkerDataEntity"));
     }
 
-    return markersData;
+    // Every geohash in a cell starts with the cell's geohash, which sorts below "~"
+    List<Query> queries = new ArrayList<>();
+    for (String cell : viewport.coveringCells(MAX_VIEWPORT_CELLS)) {
+      queries.add(new Query("MarkerDataEntity")
+          .setFilter(CompositeFilterOperator.and(
+              new FilterPredicate("geohash", FilterOperator.GREATER_THAN_OR_EQUAL, cell),
+              new FilterPredicate("geohash", FilterOperator.LESS_THAN, cell + "~")))
+          .addProjection(new PropertyProjection("geohash", String.class)));
+    }
+    return queries;
   }
 
-  /** Creates MarkerData from Datastore Entity. */
-  private MarkerData createMarkerData(Entity entity) {
+  /**
+   * Streams clusters at precision with centroids inside viewport, or all clusters at
+   * precision if viewport is null, from Datastore to writer as a JSON array.
+   */
+  private void writeClusters(Gson gson, JsonWriter writer, Viewport viewport, int precision)
+      throws IOException {
+    List<String> cells = viewport == null
+        ? Collections.singletonList("")
+        : viewport.coveringCells(MAX_VIEWPORT_CELLS, precision);
+
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+    writer.beginArray();
+    for (String cell : cells) {
+      PreparedQuery results = datastore.prepare(MarkerClusterIndex.createQuery(precision, cell));
+      for (Entity entity
+          : results.asIterable(FetchOptions.Builder.withChunkSize(MARKER_BATCH_SIZE))) {
+        MarkerCluster cluster = MarkerClusterIndex.createMarkerCluster(entity);
+        if (viewport == null || viewport.contains(cluster.getLat(), cluster.getLng())) {
+          gson.toJson(cluster, MarkerCluster.class, writer);
+        }
+      }
+    }
+    writer.endArray();
+  }
+
+  /** Creates MarkerData for each entity in batch, fetching missing display names at once. */
+  private List<MarkerData> createMarkersBatch(List<Entity> batch) {
+    DisplayNameLoader displayNameLoader = new DisplayNameLoader();
+    for (Entity entity : batch) {
+      // Only markers that predate storing the name with them need a lookup
+      if (!entity.hasProperty("displayName")) {
+        displayNameLoader.add((String) entity.getProperty("id"));
+      }
+    }
+    Map<String, String> displayNames = displayNameLoader.load();
+
+    List<MarkerData> markers = new ArrayList<>(batch.size());
+    for (Entity entity : batch) {
+      markers.add(createMarkerData(entity, displayNames));
+    }
+    return markers;
+  }
+
+  /**
+   * Creates MarkerData from Datastore Entity, using prefetched display names for
+   * markers that don't have one stored.
+   */
+  private MarkerData createMarkerData(Entity entity, Map<String, String> displayNames) {
     double lat = (double) entity.getProperty("lat");
     double lng = (double) entity.getProperty("lng");
     String content = (String) entity.getProperty("content");
     String id = (String) entity.getProperty("id");
 
-    String displayName = DataUtil.getUserDisplayName(id);
+    String displayName = entity.hasProperty("displayName")
+        ? (String) entity.getProperty("displayName") : displayNames.get(id);
 
     String key = KeyFactory.keyToString(entity.getKey());
 
     return new MarkerData(key, id, displayName, lat, lng, content);
   }
 
+  /** Receives each batch of markers read from Datastore. */
+  private interface MarkerBatchWriter {
+    void write(List<MarkerData> batch) throws IOException;
+  }
 }
@@ -0,0 +1,65 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.sps.data.DataUtil;
+import com.google.sps.data.TranslationCache;
+import com.google.sps.metrics.DatastoreMetrics;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Cron handler that deletes shared translations past their expiry. Expired ones are
+ * never read again, but every text translated saves one per language, so without
+ * this the kind would grow with every text ever translated.
+ */
+@WebServlet(DataUtil.PRUNE_TRANSLATION_CACHE_URL)
+public class PruneTranslationCacheServlet extends HttpServlet {
+
+  // Maximum number of keys Datastore accepts in a single batch delete
+  private static final int BATCH_SIZE = 500;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // App Engine strips this header from external requests, so only cron has it
+    if (request.getHeader("X-Appengine-Cron") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+    List<Key> batch = new ArrayList<>(BATCH_SIZE);
+    for (Entity entry : datastore.prepare(TranslationCache.createExpiredQuery())
+        .asIterable(FetchOptions.Builder.withChunkSize(BATCH_SIZE))) {
+      batch.add(entry.getKey());
+      if (batch.size() == BATCH_SIZE) {
+        datastore.delete(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      datastore.delete(batch);
+    }
+  }
+}
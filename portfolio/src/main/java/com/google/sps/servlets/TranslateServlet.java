@@ -14,16 +14,30 @@
 
 package com.google.sps.servlets;
 
-import com.google.cloud.translate.Translate;
-import com.google.cloud.translate.TranslateOptions;
-import com.google.cloud.translate.Translation;
-import com.google.gson.Gson;
-import com.google.sps.data.TranslationData;
+import com.google.gson.stream.JsonWriter;
+import com.google.sps.data.CountryLanguages;
+import com.google.sps.data.DataUtil;
+import com.google.sps.data.Gzip;
+import com.google.sps.data.ParallelTranslator;
+import com.google.sps.data.TranslationCache;
+import com.google.sps.data.Translator;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -32,52 +46,447 @@ import javax.servlet.http.HttpServletResponse;
 /** Servlet that translates text for languages in a majority of countries around the world. */
 @WebServlet("/translate")
 public class TranslateServlet extends HttpServlet {
- 
+
+  private static final Logger logger = Logger.getLogger(TranslateServlet.class.getName());
+
+  // Most calls to the translation service in flight for one request
+  private static final int MAX_CONCURRENT_TRANSLATIONS = 16;
+
+  // Time after which languages still being translated are reported as pending
+  private static final long TRANSLATE_DEADLINE_MILLIS = 3000;
+
+  // Most texts translated by one request, the most the service takes in one call
+  private static final int MAX_TEXTS = 128;
+
+  // Gzipped responses kept, for the most recently requested sets of texts
+  private static final int MAX_GZIP_RESPONSES = 100;
+
+  // Bounds how long a kept response is sent, so it follows translations made again
+  // once the cached ones expire
+  private static final long GZIP_RESPONSE_TTL_MILLIS = 60 * 60 * 1000;
+
+  private static final String NDJSON_TYPE = "application/x-ndjson";
+  private static final String EVENT_STREAM_TYPE = "text/event-stream";
+
+  // Translates text, through the Cloud Translation API unless a fake is configured
+  private final Translator translator;
+
+  // Threads translations are made on, or null to use App Engine request threads
+  private final ThreadFactory threadFactory;
+
+  private CountryLanguages countryLanguages;
+
+  // Gzipped responses in which no language is pending, by set of normalized texts
+  private final Map<String, GzipResponse> gzipResponses =
+      new LinkedHashMap<String, GzipResponse>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GzipResponse> eldest) {
+          return size() > MAX_GZIP_RESPONSES;
+        }
+      };
+
+  public TranslateServlet() {
+    this(DataUtil.getTranslator(), null);
+  }
+
+  /**
+   * Creates servlet that translates text with translator on threads from threadFactory,
+   * such as a fake translator and plain threads for benchmarks.
+   */
+  public TranslateServlet(Translator translator, ThreadFactory threadFactory) {
+    this.translator = translator;
+    this.threadFactory = threadFactory;
+  }
 
   @Override
-  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    String text = request.getParameter("text");
- 
-    InputStream inputStream = 
+  public void init() throws ServletException {
+    InputStream inputStream =
         getServletContext().getResourceAsStream("/WEB-INF/countrylanguages.json");
+    if (inputStream == null) {
+      throw new ServletException("Missing /WEB-INF/countrylanguages.json");
+    }
 
-    Gson gson = new Gson();
-    TranslationData[] translationsData = 
-        gson.fromJson(new InputStreamReader(inputStream, "UTF-8"), TranslationData[].class);
+    // Model never changes, so it is parsed once rather than on every request
+    try {
+      countryLanguages = CountryLanguages.load(inputStream);
+    } catch (IOException e) {
+      throw new ServletException("Failed to read /WEB-INF/countrylanguages.json", e);
+    }
+  }
 
-    translate(translationsData, text);
+  /**
+   * Responds with every country and the translations of text to each of its
+   * languages. Given one or more texts parameters instead, each language maps to an
+   * array with the translation of every text, in order.
+   *
+   * <p>Clients that accept NDJSON or Server-Sent Events are sent each country as soon
+   * as it is translated to all its languages, starting with those that are cached,
+   * instead of one array once every language is done.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String[] texts = request.getParameterValues("texts");
+    boolean batch = texts != null;
+    if (!batch) {
+      String text = request.getParameter("text");
+      if (text == null) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing text");
+        return;
+      }
+      texts = new String[] {text};
+    } else if (texts.length > MAX_TEXTS) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "At most " + MAX_TEXTS + " texts");
+      return;
+    }
 
-    // Write updated translation data to url
-    String json = gson.toJson(translationsData);
+    // Texts are looked up and cached by their normalized form, but translated as sent
+    List<String> normalizedTexts = new ArrayList<>();
+    Map<String, String> originalTexts = new LinkedHashMap<>();
+    for (String text : texts) {
+      String normalizedText = TranslationCache.normalize(text);
+      normalizedTexts.add(normalizedText);
+      originalTexts.putIfAbsent(normalizedText, text);
+    }
 
-    response.setContentType("application/json");
+    String streamType = getStreamType(request);
+    response.setContentType(streamType != null ? streamType : "application/json");
     response.setCharacterEncoding("UTF-8");
-    response.getWriter().println(json);
-  }
-
-  /** Translates text to language identified by isoCode and stores result for all countries. */
-  private void translate(TranslationData[] translationsData, String text) {
-    HashMap<String, String> translationCache = new HashMap<String, String>();
-
-    Translate translate = TranslateOptions.getDefaultInstance().getService();
-
-    for (TranslationData translationData : translationsData) {
-      HashMap<String, String> translations = translationData.getTranslations();
-      
-      for (String languageKey : translations.keySet()) {
-        // languageKey is in form "isoCode, englishName". Below statement extracts isoCode
-        String isoCode = languageKey.split(",")[0];
-        
-        // If language hasn't been translated to yet, use Cloud Translation API
-        if (!translationCache.containsKey(isoCode)) {
-          Translation translation =
-              translate.translate(text, Translate.TranslateOption.targetLanguage(isoCode));
-          translationCache.put(isoCode, translation.getTranslatedText());
-        } 
-        
-        translations.replace(languageKey, translationCache.get(isoCode)); 
-      }
-    } 
-  }
- 
+
+    if (streamType != null) {
+      response.setHeader("Cache-Control", "no-cache");
+      CountryStream stream = new CountryStream(response.getWriter(),
+          streamType.equals(EVENT_STREAM_TYPE), normalizedTexts, batch);
+      translate(originalTexts, stream);
+      return;
+    }
+
+    // Complete responses only change when translations expire, so they are compressed once
+    boolean gzip = CompressionFilter.acceptsGzip(request);
+    String responseKey = (batch ? "texts\0" : "text\0") + String.join("\0", normalizedTexts);
+    if (gzip) {
+      byte[] body = getGzipResponse(responseKey);
+      if (body != null) {
+        writeGzip(response, body);
+        return;
+      }
+    }
+
+    Map<String, Map<String, String>> translations = translate(originalTexts, null);
+
+    if (gzip && isComplete(normalizedTexts, translations)) {
+      byte[] body = Gzip.compress(out -> {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writeCountries(writer, normalizedTexts, batch, translations);
+        writer.flush();
+      });
+      putGzipResponse(responseKey, body);
+      writeGzip(response, body);
+      return;
+    }
+    writeCountries(response.getWriter(), normalizedTexts, batch, translations);
+  }
+
+  /** Translates many texts at once; long lists of texts may not fit in a query string. */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    doGet(request, response);
+  }
+
+  /** Returns content type to stream countries as, or null if the client can't take a stream. */
+  private String getStreamType(HttpServletRequest request) {
+    String accept = request.getHeader("Accept");
+    if (accept == null) {
+      return null;
+    }
+    if (accept.contains(NDJSON_TYPE)) {
+      return NDJSON_TYPE;
+    }
+    if (accept.contains(EVENT_STREAM_TYPE)) {
+      return EVENT_STREAM_TYPE;
+    }
+    return null;
+  }
+
+  /** Writes every country with its translations of texts to out, as one JSON array. */
+  private void writeCountries(PrintWriter out, List<String> texts, boolean batch,
+      Map<String, Map<String, String>> translations) throws IOException {
+    JsonWriter writer = createJsonWriter(out);
+    writer.beginArray();
+    for (CountryLanguages.Country country : countryLanguages.getCountries()) {
+      writeCountry(writer, country, texts, batch, translations);
+    }
+    writer.endArray();
+    writer.flush();
+    out.println();
+  }
+
+  /** Returns true if translations has every text in every language, none pending. */
+  private boolean isComplete(List<String> texts, Map<String, Map<String, String>> translations) {
+    for (String text : texts) {
+      Map<String, String> textTranslations = translations.get(text);
+      for (String isoCode : countryLanguages.getIsoCodes()) {
+        if (textTranslations.get(isoCode) == null) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Returns kept gzipped response for key, or null if there is none or it expired. */
+  private byte[] getGzipResponse(String key) {
+    synchronized (gzipResponses) {
+      GzipResponse response = gzipResponses.get(key);
+      if (response == null) {
+        return null;
+      }
+      if (System.currentTimeMillis() - response.createdAtMillis > GZIP_RESPONSE_TTL_MILLIS) {
+        gzipResponses.remove(key);
+        return null;
+      }
+      return response.body;
+    }
+  }
+
+  private void putGzipResponse(String key, byte[] body) {
+    synchronized (gzipResponses) {
+      gzipResponses.put(key, new GzipResponse(body));
+    }
+  }
+
+  private void writeGzip(HttpServletResponse response, byte[] body) throws IOException {
+    response.setHeader("Content-Encoding", "gzip");
+    response.getOutputStream().write(body);
+  }
+
+  private JsonWriter createJsonWriter(Writer out) {
+    JsonWriter writer = new JsonWriter(out);
+    writer.setHtmlSafe(true);
+    writer.setSerializeNulls(true);
+    return writer;
+  }
+
+  /**
+   * Writes country with the translation of texts to each of its languages, or with
+   * an array of translations if batch is true. Languages missing a translation are
+   * listed as pending.
+   */
+  private void writeCountry(JsonWriter writer, CountryLanguages.Country country,
+      List<String> texts, boolean batch, Map<String, Map<String, String>> translations)
+      throws IOException {
+    writer.beginObject();
+    writer.name("country").value(country.getName());
+    writer.name("lat").value(country.getLat());
+    writer.name("lng").value(country.getLng());
+    writer.name("translations").beginObject();
+    List<String> languageKeys = country.getLanguageKeys();
+    List<String> pending = new ArrayList<>();
+    for (int i = 0; i < languageKeys.size(); i++) {
+      String isoCode = country.getIsoCodes().get(i);
+      writer.name(languageKeys.get(i));
+      if (batch) {
+        writer.beginArray();
+      }
+      boolean isPending = false;
+      for (String text : texts) {
+        String translation = translations.get(text).get(isoCode);
+        isPending |= translation == null;
+        writer.value(translation);
+      }
+      if (batch) {
+        writer.endArray();
+      }
+      if (isPending) {
+        pending.add(languageKeys.get(i));
+      }
+    }
+    writer.endObject();
+
+    // Languages not translated in time are null, and listed so the client can retry
+    if (!pending.isEmpty()) {
+      writer.name("pending").beginArray();
+      for (String languageKey : pending) {
+        writer.value(languageKey);
+      }
+      writer.endArray();
+    }
+    writer.endObject();
+  }
+
+  /**
+   * Translates each text in originalTexts, keyed by its normalized form, to every
+   * language spoken in some country, and returns the translations of each normalized
+   * text keyed by ISO code. Only languages a text is not cached in are requested from
+   * the service, which is sent the text as the client sent it, and translations not
+   * made by the deadline are left out. Unless stream is null, countries are written
+   * to it as their translations become available.
+   */
+  private Map<String, Map<String, String>> translate(Map<String, String> originalTexts,
+      CountryStream stream) throws IOException {
+    TranslationCache translationCache = DataUtil.getTranslationCache();
+    Set<String> isoCodes = countryLanguages.getIsoCodes();
+
+    // Each language is asked for every text it is missing in one call
+    Map<String, Map<String, String>> translations = new HashMap<>();
+    Map<String, List<String>> missingTexts = new LinkedHashMap<>();
+    for (String text : originalTexts.keySet()) {
+      Map<String, String> textTranslations = translationCache.getAll(text, isoCodes);
+      translations.put(text, textTranslations);
+      for (String isoCode : isoCodes) {
+        if (!textTranslations.containsKey(isoCode)) {
+          missingTexts.computeIfAbsent(isoCode, k -> new ArrayList<>()).add(text);
+        }
+      }
+    }
+
+    if (stream != null) {
+      stream.start(translations, missingTexts.keySet());
+    }
+    if (missingTexts.isEmpty()) {
+      if (stream != null) {
+        stream.finish();
+      }
+      return translations;
+    }
+
+    // Normalizing may change meaning, such as in preformatted text, so it only picks keys
+    Map<String, List<String>> requestedTexts = new LinkedHashMap<>();
+    for (Map.Entry<String, List<String>> entry : missingTexts.entrySet()) {
+      List<String> texts = new ArrayList<>();
+      for (String text : entry.getValue()) {
+        texts.add(originalTexts.get(text));
+      }
+      requestedTexts.put(entry.getKey(), texts);
+    }
+
+    // Languages are requested at once, so latency is that of the slowest, up to a deadline
+    ParallelTranslator parallelTranslator =
+        new ParallelTranslator(translator, threadFactory, MAX_CONCURRENT_TRANSLATIONS,
+            TRANSLATE_DEADLINE_MILLIS);
+
+    Map<String, Map<String, String>> newTranslations = new HashMap<>();
+    parallelTranslator.translateAll(requestedTexts, (isoCode, translatedTexts) -> {
+      List<String> texts = missingTexts.get(isoCode);
+      for (int i = 0; i < texts.size(); i++) {
+        translations.get(texts.get(i)).put(isoCode, translatedTexts.get(i));
+        newTranslations.computeIfAbsent(texts.get(i), k -> new HashMap<>())
+            .put(isoCode, translatedTexts.get(i));
+      }
+      if (stream != null) {
+        stream.onTranslated(isoCode);
+      }
+    });
+
+    // Translations are sent either way, so failing to cache them only costs a later request
+    try {
+      for (Map.Entry<String, Map<String, String>> entry : newTranslations.entrySet()) {
+        translationCache.putAll(entry.getKey(), entry.getValue());
+      }
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to cache translations of "
+          + newTranslations.size() + " texts", e);
+    }
+    if (stream != null) {
+      stream.finish();
+    }
+    return translations;
+  }
+
+  /** Gzipped response body and the time at which it was compressed. */
+  private static final class GzipResponse {
+    private final byte[] body;
+    private final long createdAtMillis;
+
+    private GzipResponse(byte[] body) {
+      this.body = body;
+      this.createdAtMillis = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Writes each country as one NDJSON line or Server-Sent Event, once all of its
+   * languages are translated or the deadline has passed.
+   */
+  private final class CountryStream {
+    private final PrintWriter out;
+    private final boolean eventStream;
+    private final List<String> texts;
+    private final boolean batch;
+    private final Map<String, List<CountryLanguages.Country>> waitingCountries = new HashMap<>();
+    private final Map<CountryLanguages.Country, Integer> missingLanguages = new HashMap<>();
+    private Map<String, Map<String, String>> translations;
+
+    private CountryStream(PrintWriter out, boolean eventStream, List<String> texts,
+        boolean batch) {
+      this.out = out;
+      this.eventStream = eventStream;
+      this.texts = texts;
+      this.batch = batch;
+    }
+
+    /** Writes countries that need none of missingIsoCodes, and holds back the rest. */
+    private void start(Map<String, Map<String, String>> translations,
+        Set<String> missingIsoCodes) throws IOException {
+      this.translations = translations;
+      for (CountryLanguages.Country country : countryLanguages.getCountries()) {
+        int missing = 0;
+        for (String isoCode : new LinkedHashSet<>(country.getIsoCodes())) {
+          if (missingIsoCodes.contains(isoCode)) {
+            waitingCountries.computeIfAbsent(isoCode, k -> new ArrayList<>()).add(country);
+            missing++;
+          }
+        }
+        if (missing == 0) {
+          write(country);
+        } else {
+          missingLanguages.put(country, missing);
+        }
+      }
+      out.flush();
+    }
+
+    /** Writes countries whose last missing language was the one identified by isoCode. */
+    private void onTranslated(String isoCode) throws IOException {
+      List<CountryLanguages.Country> countries = waitingCountries.remove(isoCode);
+      if (countries == null) {
+        return;
+      }
+      for (CountryLanguages.Country country : countries) {
+        int missing = missingLanguages.get(country) - 1;
+        if (missing == 0) {
+          missingLanguages.remove(country);
+          write(country);
+        } else {
+          missingLanguages.put(country, missing);
+        }
+      }
+      out.flush();
+    }
+
+    /** Writes countries still missing languages, marked as pending, and ends the stream. */
+    private void finish() throws IOException {
+      for (CountryLanguages.Country country : countryLanguages.getCountries()) {
+        if (missingLanguages.containsKey(country)) {
+          write(country);
+        }
+      }
+      missingLanguages.clear();
+
+      // EventSource reconnects when a stream ends, so tell it the stream is complete
+      if (eventStream) {
+        out.print("event: done\ndata: {}\n\n");
+      }
+      out.flush();
+    }
+
+    private void write(CountryLanguages.Country country) throws IOException {
+      if (eventStream) {
+        out.print("data: ");
+      }
+      JsonWriter writer = createJsonWriter(out);
+      writeCountry(writer, country, texts, batch, translations);
+      writer.flush();
+      out.print(eventStream ? "\n\n" : "\n");
+    }
+  }
 }
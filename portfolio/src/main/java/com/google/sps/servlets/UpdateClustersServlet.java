@@ -0,0 +1,83 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.sps.data.DataUtil;
+import com.google.sps.data.MarkerClusterIndex;
+import com.google.sps.metrics.DatastoreMetrics;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Task queue handler that retries a marker cluster update that kept conflicting with
+ * other updates. Queued by MarkerClusterIndex, and retried by the queue until the
+ * update is applied, so that cluster counts don't drift.
+ */
+@WebServlet(DataUtil.UPDATE_CLUSTERS_URL)
+public class UpdateClustersServlet extends HttpServlet {
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // App Engine strips this header from external requests, so only tasks have it
+    if (request.getHeader("X-AppEngine-QueueName") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    String operation = request.getParameter("operation");
+    String[] keyParams = request.getParameterValues("key");
+    if (operation == null || keyParams == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    List<Key> keys = new ArrayList<>();
+    for (String key : keyParams) {
+      keys.add(KeyFactory.stringToKey(key));
+    }
+
+    List<Entity> markers = new ArrayList<>();
+    if (operation.equals(MarkerClusterIndex.REMOVE)) {
+      // Removed markers are deleted, so rebuild the properties clusters need
+      Entity marker = new Entity(keys.get(0));
+      marker.setProperty("lat", Double.parseDouble(request.getParameter("lat")));
+      marker.setProperty("lng", Double.parseDouble(request.getParameter("lng")));
+      marker.setProperty("geohash", request.getParameter("geohash"));
+      markers.add(marker);
+    } else {
+      // Markers deleted since are left out, so that none becomes a cluster sample
+      DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+      Map<Key, Entity> saved = datastore.get(keys);
+      for (Key key : keys) {
+        Entity marker = saved.get(key);
+        if (marker != null) {
+          markers.add(marker);
+        }
+      }
+    }
+
+    // Throws if the update conflicts again, so that the queue retries the task
+    MarkerClusterIndex.retry(operation, markers);
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.sps.data.DataUtil;
+import com.google.sps.data.MarkerChanges;
+import com.google.sps.data.UserProfileRepository;
+import com.google.sps.metrics.DatastoreMetrics;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Task queue handler that copies a user's current display name onto every comment
+ * and marker they have left. Queued by DataUtil.queueDisplayNameUpdate whenever a
+ * user changes their display name.
+ */
+@WebServlet(DataUtil.UPDATE_DISPLAY_NAME_URL)
+public class UpdateDisplayNameServlet extends HttpServlet {
+
+  // Maximum number of entities Datastore accepts in a single batch put
+  private static final int BATCH_SIZE = 500;
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // App Engine strips this header from external requests, so only tasks have it
+    if (request.getHeader("X-AppEngine-QueueName") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    String id = request.getParameter("id");
+
+    // Use the name stored now rather than the one queued, so that tasks queued
+    // by successive renames all converge on the latest name
+    DatastoreService datastore = DatastoreMetrics.getDatastoreService();
+    Entity userInfo = new UserProfileRepository(datastore).get(id);
+    if (userInfo == null) {
+      return;
+    }
+    String displayName = (String) userInfo.getProperty("displayName");
+    if (displayName == null) {
+      displayName = "";
+    }
+
+    int updatedComments = updateDisplayName(datastore, "CommentData", id, displayName);
+    updateDisplayName(datastore, "MarkerDataEntity", id, displayName);
+
+    if (updatedComments > 0) {
+      DataUtil.getCommentsFeedCache().bumpVersion();
+    }
+  }
+
+  /**
+   * Sets displayName on every entity of kind added by user with id, in batches.
+   * Returns number of entities that were changed.
+   */
+  private int updateDisplayName(DatastoreService datastore, String kind, String id,
+      String displayName) {
+    Query query =
+        new Query(kind)
+        .setFilter(new Query.FilterPredicate("id", Query.FilterOperator.EQUAL, id))
+        .setKeysOnly();
+    PreparedQuery results = datastore.prepare(query);
+
+    int updated = 0;
+    List<Key> batch = new ArrayList<>(BATCH_SIZE);
+    for (Entity keyEntity : results.asIterable(FetchOptions.Builder.withChunkSize(BATCH_SIZE))) {
+      batch.add(keyEntity.getKey());
+      if (batch.size() == BATCH_SIZE) {
+        updated += updateBatch(datastore, batch, displayName);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      updated += updateBatch(datastore, batch, displayName);
+    }
+
+    return updated;
+  }
+
+  /** Sets displayName on entities with keys, skipping those that already have it. */
+  private int updateBatch(DatastoreService datastore, List<Key> keys, String displayName) {
+    // Entities are read just before writing so concurrent edits are unlikely to be lost
+    List<Entity> changed = new ArrayList<>();
+    for (Entity entity : datastore.get(keys).values()) {
+      if (!displayName.equals(entity.getProperty("displayName"))) {
+        entity.setUnindexedProperty("displayName", displayName);
+        if (entity.getKind().equals("MarkerDataEntity")) {
+          entity.setProperty("version", MarkerChanges.nextVersion());
+        }
+        changed.add(entity);
+      }
+    }
+
+    if (!changed.isEmpty()) {
+      datastore.put(changed);
+    }
+    return changed.size();
+  }
+}
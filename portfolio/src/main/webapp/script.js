@@ -12,12 +12,19 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
  
+const MARKERS_CONTENT_TYPE = "application/x-sps-markers";
+
 let loggedIn;
 let id;
 let displayName;
 let map;
 let editMarker;
 let countryMarkers = [];
+let viewportMarkers = new Map();
+let clusterMarkers = [];
+let markersVersion = null;
+let markersRequest = 0;
+let nextCommentsCursor;
  
 /** 
  * Gets authentication status of user and loads map and comments section. If
@@ -114,16 +121,33 @@ function deleteKey(key, deleteFunc) {
 } 
  
 /**
- * Fetches up to max number of comments specified by user from the server and adds them to DOM.
+ * Clears comments section and fetches the first page of comments, with up to
+ * max number of comments specified by user.
  */
 function getComments() {
-  const fetchURL = "/comments?max-comments=" + document.getElementById("comments-select").value;
+  document.getElementById("comments-container").innerHTML = '';
+  fetchComments("");
+}
+
+/** Fetches the page of comments after the last one displayed and adds it to DOM. */
+function getMoreComments() {
+  fetchComments(nextCommentsCursor);
+}
+
+/**
+ * Fetches a page of comments from the server and adds them to DOM.
+ * @param {string} cursor Cursor returned with the previous page, or empty for the first page
+ */
+function fetchComments(cursor) {
+  let fetchURL = "/comments?max-comments=" + document.getElementById("comments-select").value;
+  if (cursor) {
+    fetchURL += "&cursor=" + encodeURIComponent(cursor);
+  }
  
-  fetch(fetchURL).then(response => response.json()).then((commentsData) => {
+  fetch(fetchURL).then(response => response.json()).then((commentsPage) => {
     const commentsContainer = document.getElementById("comments-container");
-    commentsContainer.innerHTML = '';
     
-    for (commentData of commentsData) {
+    for (commentData of commentsPage.comments) {
       // Create new comment elements
       const commentHeader = createCommentHeader(commentData.displayName, commentData.utcDate);
       const commentContentElement = document.createElement("div");
@@ -136,6 +160,10 @@ function getComments() {
       // Place content of user comment into commentContentElement;
       addCommentContent(commentData);
     }
+
+    // Only offer more comments if the server returned a cursor for them
+    nextCommentsCursor = commentsPage.next;
+    document.getElementById("more-comments").hidden = !nextCommentsCursor;
   });
 }
  
@@ -273,7 +301,13 @@ function postComment() {
   };
  
   // Reload comments section of page after processing new comment
-  fetch("/comments", options).then(_ => {
+  fetch("/comments", options).then(response => {
+    // Server is busy and didn't accept the comment
+    if (response.status == 503) {
+      alert("Too many comments are being posted right now. Please try again.");
+      return;
+    }
+
     document.getElementById("name").value = displayName;
     getComments();
   });
@@ -291,14 +325,202 @@ function createMap() {
     });
   }
  
-  fetchMarkers();
+  // Reload markers whenever the map settles on a new viewport
+  map.addListener("idle", fetchMarkers);
 }
  
-/** Fetches markers from Datastore and adds them to the map. */
+/** Fetches markers inside the current viewport from Datastore and adds them to the map. */
 function fetchMarkers() {
-  fetch("/markers").then(response => response.json()).then((markersData) => {
-    markersData.forEach((markerData) => {createMarkerForDisplay(markerData)});
+  const params = getViewportParams();
+  params.append("zoom", map.getZoom());
+
+  // Ignore responses for viewports the user has already moved away from
+  const request = ++markersRequest;
+  fetchMarkersData(params).then((viewportData) => {
+    if (request != markersRequest) {
+      return;
+    }
+    clearViewportMarkers();
+
+    // Zoomed out maps get clusters of markers instead of the markers themselves
+    if (viewportData.clusters) {
+      markersVersion = null;
+      viewportData.clusters.forEach((cluster) => {createClusterForDisplay(cluster)});
+    } else {
+      markersVersion = viewportData.version;
+      viewportData.markers.forEach((markerData) => {createMarkerForDisplay(markerData)});
+    }
+  });
+}
+
+/**
+ * Fetches only the markers in the current viewport that changed since they were
+ * last fetched, and updates the map with them. Clusters are fetched again instead,
+ * as are all markers if the last fetch is too old for the server to sync from.
+ */
+function syncMarkers() {
+  if (markersVersion == null) {
+    fetchMarkers();
+    return;
+  }
+
+  const params = getViewportParams();
+  params.append("since", markersVersion);
+
+  const request = ++markersRequest;
+  fetchMarkersData(params).then((changes) => {
+    if (request != markersRequest) {
+      return;
+    }
+    if (changes == null) {
+      markersVersion = null;
+      fetchMarkers();
+      return;
+    }
+    markersVersion = changes.version;
+
+    changes.markers.forEach((markerData) => {createMarkerForDisplay(markerData)});
+    changes.deleted.forEach((key) => {
+      if (viewportMarkers.has(key)) {
+        viewportMarkers.get(key).setMap(null);
+        viewportMarkers.delete(key);
+      }
+    });
+  });
+}
+
+/**
+ * Fetches /markers with params, asking for the compact binary format, and returns
+ * a promise of the response in the shape of the JSON one, or of null if the
+ * version given as since is too old to sync from.
+ * @param {URLSearchParams} params Viewport, zoom and version parameters
+ */
+function fetchMarkersData(params) {
+  const options = {headers: {"Accept": MARKERS_CONTENT_TYPE + ", application/json"}};
+  return fetch("/markers?" + params, options).then((response) => {
+    if (response.status == 410) {
+      return null;
+    }
+
+    // Clusters are always sent as JSON
+    if (response.headers.get("Content-Type").startsWith(MARKERS_CONTENT_TYPE)) {
+      return response.arrayBuffer().then(decodeMarkers);
+    }
+    return response.json();
+  });
+}
+
+/**
+ * Decodes markers, deleted keys and version written by MarkerColumnsWriter.
+ * @param {ArrayBuffer} buffer Response body in the binary markers format
+ */
+function decodeMarkers(buffer) {
+  const bytes = new Uint8Array(buffer);
+  const decoder = new TextDecoder();
+  let offset = 1; // format version
+
+  // Varints may exceed 32 bits, so they are decoded without bitwise operators
+  const readUnsigned = () => {
+    let value = 0;
+    let scale = 1;
+    let byte;
+    do {
+      byte = bytes[offset++];
+      value += (byte & 0x7f) * scale;
+      scale *= 128;
+    } while (byte & 0x80);
+    return value;
+  };
+  const readSigned = () => {
+    const value = readUnsigned();
+    return value % 2 == 0 ? value / 2 : -(value + 1) / 2;
+  };
+  const readString = () => {
+    const length = readUnsigned();
+    const value = decoder.decode(bytes.subarray(offset, offset + length));
+    offset += length;
+    return value;
+  };
+  const readColumn = (count, read) => Array.from({length: count}, read);
+
+  const markers = [];
+  for (let count = readUnsigned(); count > 0; count = readUnsigned()) {
+    const dictionary = readColumn(readUnsigned(), readString);
+    let previousKey = "";
+    const keys = readColumn(count, () => {
+      const shared = readUnsigned();
+      previousKey = previousKey.substring(0, shared) + readString();
+      return previousKey;
+    });
+    const ids = readColumn(count, readUnsigned);
+    const names = readColumn(count, readUnsigned);
+    const lats = readColumn(count, readSigned);
+    const lngs = readColumn(count, readSigned);
+    const contents = readColumn(count, readString);
+
+    let lat = 0;
+    let lng = 0;
+    for (let i = 0; i < count; i++) {
+      lat += lats[i];
+      lng += lngs[i];
+      markers.push({
+        key: keys[i],
+        id: dictionary[ids[i]],
+        displayName: names[i] == 0 ? undefined : dictionary[names[i] - 1],
+        lat: lat / 1e6,
+        lng: lng / 1e6,
+        content: contents[i],
+      });
+    }
+  }
+
+  const deleted = readColumn(readUnsigned(), readString);
+  const version = readUnsigned();
+  return {markers: markers, deleted: deleted, version: version};
+}
+
+/** Returns bounds of the current viewport as /markers parameters. */
+function getViewportParams() {
+  const bounds = map.getBounds();
+  const params = new URLSearchParams();
+  params.append("north", bounds.getNorthEast().lat());
+  params.append("south", bounds.getSouthWest().lat());
+  params.append("east", bounds.getNorthEast().lng());
+  params.append("west", bounds.getSouthWest().lng());
+  return params;
+}
+
+/**
+ * Creates a marker labeled with the number of markers in cluster that zooms in on
+ * the cluster when clicked.
+ * @param {Object} cluster Contains centroid, count and a sample of clustered markers
+ */
+function createClusterForDisplay(cluster) {
+  const marker = new google.maps.Marker({
+    position: {lat: cluster.lat, lng: cluster.lng},
+    label: String(cluster.count),
+    title: cluster.sampleContent,
+    map: map,
   });
+  clusterMarkers.push(marker);
+
+  marker.addListener("click", () => {
+    map.setCenter(marker.getPosition());
+    map.setZoom(map.getZoom() + 2);
+  });
+}
+
+/** Removes markers and clusters of the previous viewport from map. */
+function clearViewportMarkers() {
+  for (viewportMarker of viewportMarkers.values()) {
+    viewportMarker.setMap(null);
+  }
+  viewportMarkers.clear();
+
+  for (clusterMarker of clusterMarkers) {
+    clusterMarker.setMap(null);
+  }
+  clusterMarkers = [];
 }
  
 /**
@@ -311,6 +533,12 @@ function createMarkerForDisplay(markerData) {
     position: {lat: markerData.lat, lng: markerData.lng},
     map: map,
   });
+
+  // Replace the marker shown for an earlier version of markerData
+  if (viewportMarkers.has(markerData.key)) {
+    viewportMarkers.get(markerData.key).setMap(null);
+  }
+  viewportMarkers.set(markerData.key, marker);
  
   const nameNode = document.createTextNode(markerData.displayName + " says:");
   const boldElement = document.createElement("b");
@@ -470,8 +698,8 @@ function postMarker(lat, lng, name, content) {
     body: postBody
   };
  
-  // Reload maps section of page after processing new marker
-  fetch("/markers", options).then(_ => {createMap();});
+  // Fetch only the markers changed since the map was loaded, including the new one
+  fetch("/markers", options).then(_ => {syncMarkers();});
 }
 
 
@@ -490,30 +718,55 @@ function translateText() {
 
     const fetchURL = "translate?text=" + text;
 
-    fetch(fetchURL).then(response => response.json()).then((translationsData) => {
-      document.getElementById("loading").hidden = true;
-      for (translationData of translationsData) {
-        const marker = new google.maps.Marker({
-          position: {lat: translationData.lat, lng: translationData.lng},
-          icon: "https://labs.google.com/ridefinder/images/mm_20_blue.png",
-          map: map
-        }); 
-        
-        const infoWindow = new google.maps.InfoWindow({
-          content: buildTranslationWindowInfo(translationData)
-        });
-
-        marker.addListener("click", () => {
-          infoWindow.open(map, marker);
-        });
-
-        // Store marker so that it can be cleared later
-        countryMarkers.push(marker);
-      }
+    // Countries are streamed one per line as soon as they are translated
+    fetch(fetchURL, {headers: {"Accept": "application/x-ndjson"}}).then((response) => {
+      const reader = response.body.getReader();
+      const decoder = new TextDecoder();
+      let buffered = "";
+
+      const readChunk = () => reader.read().then(({done, value}) => {
+        buffered += decoder.decode(value || new Uint8Array(), {stream: !done});
+        const lines = buffered.split("\n");
+        buffered = done ? "" : lines.pop();
+        for (const line of lines) {
+          if (line.length > 0) {
+            document.getElementById("loading").hidden = true;
+            addTranslationMarker(JSON.parse(line));
+          }
+        }
+        if (!done) {
+          return readChunk();
+        }
+        document.getElementById("loading").hidden = true;
+      });
+      return readChunk();
     });
   }
 }
 
+/**
+ * Adds marker for country with an InfoWindow showing its translations.
+ * @param {Object} translationData Contains country name, position, and translations
+ */
+function addTranslationMarker(translationData) {
+  const marker = new google.maps.Marker({
+    position: {lat: translationData.lat, lng: translationData.lng},
+    icon: "https://labs.google.com/ridefinder/images/mm_20_blue.png",
+    map: map
+  });
+
+  const infoWindow = new google.maps.InfoWindow({
+    content: buildTranslationWindowInfo(translationData)
+  });
+
+  marker.addListener("click", () => {
+    infoWindow.open(map, marker);
+  });
+
+  // Store marker so that it can be cleared later
+  countryMarkers.push(marker);
+}
+
 /**
  * Populates InfoWindow corresponding to country with translation of input 
  * text in the languages spoken in the country.
@@ -538,7 +791,10 @@ function buildTranslationWindowInfo(translationData) {
     languageElement.appendChild(languageText);
 
     translationsElement.appendChild(languageElement);
-    translationsElement.appendChild(document.createTextNode(translationData.translations[languageKey]));
+    // Translations not ready in time are null until the text is translated again
+    const translation = translationData.translations[languageKey];
+    translationsElement.appendChild(
+        document.createTextNode(translation === null ? "(translation pending)" : translation));
     translationsElement.appendChild(document.createElement("br"));
   }
 
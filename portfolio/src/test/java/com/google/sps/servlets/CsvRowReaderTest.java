@@ -0,0 +1,121 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests reading markers from CSV uploads to ImportMarkersServlet. */
+public class CsvRowReaderTest {
+
+  // Entities need an App Engine environment for their keys
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void readsCrlfLineBreaks() throws IOException {
+    ImportMarkersServlet.CsvRowReader rows = createReader("1,2,first\r\n3,4,second\r\n");
+
+    assertMarker(rows.next(), 1, 2, "first");
+    assertMarker(rows.next(), 3, 4, "second");
+    assertNull(rows.next());
+  }
+
+  @Test
+  public void readsDoubledQuotesAsOneQuote() throws IOException {
+    ImportMarkersServlet.CsvRowReader rows = createReader("1,2,\"a \"\"b\"\", c\"\n");
+
+    assertMarker(rows.next(), 1, 2, "a \"b\", c");
+    assertNull(rows.next());
+  }
+
+  @Test
+  public void readsLineBreaksInQuotedField() throws IOException {
+    ImportMarkersServlet.CsvRowReader rows =
+        createReader("1,2,\"first\r\nsecond\rthird\"\n3,4,next\n");
+
+    Entity marker = rows.next();
+    String content = (String) marker.getProperty("content");
+    assertTrue(content, content.matches("first\\s+second\\s+third"));
+    assertEquals(1, rows.getRowNumber());
+    assertMarker(rows.next(), 3, 4, "next");
+    assertEquals(2, rows.getRowNumber());
+    assertNull(rows.next());
+  }
+
+  @Test
+  public void findsHeaderAfterBlankLines() throws IOException {
+    ImportMarkersServlet.CsvRowReader rows =
+        createReader("\n  \r\ncontent,lng,lat\nhello,2,1\n");
+
+    assertMarker(rows.next(), 1, 2, "hello");
+    assertNull(rows.next());
+  }
+
+  @Test
+  public void skipsRestOfQuotedFieldOverLimit() throws IOException {
+    StringBuilder body = new StringBuilder("1,2,\"");
+    for (int i = 0; i < 10001; i++) {
+      body.append('x');
+    }
+    body.append("\n3,4,still quoted\n\"\n5,6,after\n");
+    ImportMarkersServlet.CsvRowReader rows = createReader(body.toString());
+
+    try {
+      rows.next();
+      fail("Expected row over the limit to be rejected");
+    } catch (IllegalArgumentException e) {
+      assertEquals(1, rows.getRowNumber());
+    }
+    assertMarker(rows.next(), 5, 6, "after");
+    assertEquals(2, rows.getRowNumber());
+    assertNull(rows.next());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsUnterminatedQuotedField() throws IOException {
+    createReader("1,2,\"open\n3,4,rest\n").next();
+  }
+
+  private static ImportMarkersServlet.CsvRowReader createReader(String body) {
+    return new ImportMarkersServlet.CsvRowReader(new BufferedReader(new StringReader(body)));
+  }
+
+  private static void assertMarker(Entity marker, double lat, double lng, String content) {
+    assertEquals(lat, (double) marker.getProperty("lat"), 0);
+    assertEquals(lng, (double) marker.getProperty("lng"), 0);
+    assertEquals(content, marker.getProperty("content"));
+  }
+}
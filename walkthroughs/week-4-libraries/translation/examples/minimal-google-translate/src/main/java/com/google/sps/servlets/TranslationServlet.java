@@ -26,6 +26,23 @@ import javax.servlet.http.HttpServletResponse;
 @WebServlet("/translate")
 public class TranslationServlet extends HttpServlet {
 
+  private final Translator translator;
+
+  /** Creates servlet that translates with the Cloud Translation API. */
+  public TranslationServlet() {
+    this((text, languageCode) -> {
+      Translate translate = TranslateOptions.getDefaultInstance().getService();
+      Translation translation =
+          translate.translate(text, Translate.TranslateOption.targetLanguage(languageCode));
+      return translation.getTranslatedText();
+    });
+  }
+
+  /** Creates servlet that translates with translator, such as a fake for load tests. */
+  public TranslationServlet(Translator translator) {
+    this.translator = translator;
+  }
+
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
     // Get the request parameters.
@@ -33,10 +50,7 @@ public class TranslationServlet extends HttpServlet {
     String languageCode = request.getParameter("languageCode");
 
     // Do the translation.
-    Translate translate = TranslateOptions.getDefaultInstance().getService();
-    Translation translation =
-        translate.translate(originalText, Translate.TranslateOption.targetLanguage(languageCode));
-    String translatedText = translation.getTranslatedText();
+    String translatedText = translator.translate(originalText, languageCode);
 
     // Output the translation.
     response.setContentType("text/html; charset=UTF-8");